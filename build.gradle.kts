@@ -10,6 +10,8 @@ dependencies {
   implementation("androidx.window:window-java:1.4.0")
   implementation("androidx.core:core:1.16.0") // Version 1.17.0 available with sdk 36
   testImplementation("junit:junit:4.13.2")
+  // XML parser for comparing the compiled layouts with the XML files.
+  testImplementation("net.sf.kxml:kxml2:2.3.0")
 }
 
 android {
@@ -28,6 +30,7 @@ android {
     named("main") {
       manifest.srcFile("AndroidManifest.xml")
       java.srcDirs("srcs/juloo.keyboard2")
+      resources.srcDirs("srcs/resources")
       res.srcDirs("res", "build/generated-resources")
       assets.srcDirs("assets")
     }
@@ -84,6 +87,11 @@ android {
     sourceCompatibility = JavaVersion.VERSION_1_8
     targetCompatibility = JavaVersion.VERSION_1_8
   }
+
+  // KeyEventHandlerTest creates a [Handler].
+  testOptions {
+    unitTests.isReturnDefaultValues = true
+  }
 }
 
 val buildKeyboardFont by tasks.registering(Exec::class) {
@@ -107,8 +115,10 @@ val genEmojis by tasks.registering(Exec::class) {
 
 val genLayoutsList by tasks.registering(Exec::class) {
   inputs.dir(projectDir.resolve("srcs/layouts"))
-  outputs.file(projectDir.resolve("res/values/layouts.xml"))
-  doFirst { println("\nGenerating res/values/layouts.xml") }
+  inputs.dir(projectDir.resolve("res/xml"))
+  outputs.files(projectDir.resolve("res/values/layouts.xml"),
+    projectDir.resolve("srcs/resources/juloo/keyboard2/layouts.bin"))
+  doFirst { println("\nGenerating res/values/layouts.xml and layouts.bin") }
   workingDir = projectDir
   commandLine("python", "gen_layouts.py")
 }
@@ -125,14 +135,16 @@ val checkKeyboardLayouts by tasks.registering(Exec::class) {
 val compileComposeSequences by tasks.registering(Exec::class) {
   val `in` = projectDir.resolve("srcs/compose")
   val out = projectDir.resolve("srcs/juloo.keyboard2/ComposeKeyData.java")
+  val outBinary = projectDir.resolve("srcs/resources/juloo/keyboard2/compose_data.bin")
   inputs.dir(`in`)
-  outputs.file(out)
+  outputs.files(out, outBinary)
   doFirst { println("\nGenerating $out") }
   val sequences = `in`.listFiles { it: File ->
     !it.name.endsWith(".py") && !it.name.endsWith(".md")
   }!!.map { it.absolutePath }.toTypedArray()
   workingDir = projectDir
-  commandLine("python", `in`.resolve("compile.py").absolutePath, *sequences)
+  commandLine("python", `in`.resolve("compile.py").absolutePath,
+    "--binary", outBinary.absolutePath, *sequences)
   doFirst { standardOutput = FileOutputStream(out) }
 }
 
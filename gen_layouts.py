@@ -2,9 +2,11 @@
 
 # Generates the list of layouts in res/values/layouts.xml from the layout files
 # in srcs/layouts. Every layouts must have a 'name' attribute to be listed.
+# Also compiles the layouts in srcs/layouts and res/xml into the binary format
+# read by CompiledLayouts.java.
 
 import itertools as it
-import sys, os, glob
+import sys, os, glob, struct
 import xml.etree.ElementTree as XML
 
 # Layouts first in the list (these are the programming layouts). Other layouts
@@ -59,6 +61,148 @@ def generate_arrays(out, layouts):
     XML.indent(root)
     XML.ElementTree(element=root).write(out, encoding="utf-8", xml_declaration=True)
 
+# Binary format, see CompiledLayouts.java. Integers are LEB128 varints and
+# floats are big-endian 32-bit floats. Strings are indexes into a table at the
+# beginning of the file, optional strings are shifted by one and 0 is null.
+
+BINARY_MAGIC = b"UKLY"
+BINARY_VERSION = 1
+# Attributes of the 9 key values, with their synonyms.
+KEY_ATTRS = [ ("key0", "c"), ("key1", "nw"), ("key2", "ne"), ("key3", "sw"),
+             ("key4", "se"), ("key5", "w"), ("key6", "e"), ("key7", "n"),
+             ("key8", "s") ]
+MODMAP_TAGS = { "shift": 0, "fn": 1, "ctrl": 2 }
+
+class BinaryWriter:
+    # [strings] is the string table, shared between writers.
+    def __init__(self, strings):
+        self.strings = strings
+        self.body = bytearray()
+
+    def varint(self, v):
+        while v >= 0x80:
+            self.body.append((v & 0x7F) | 0x80)
+            v >>= 7
+        self.body.append(v)
+
+    def float(self, v):
+        self.body += struct.pack(">f", float(v))
+
+    def string_index(self, s):
+        return self.strings.setdefault(s, len(self.strings))
+
+    def string(self, s):
+        self.varint(self.string_index(s))
+
+    def opt_string(self, s):
+        self.varint(0 if s is None else self.string_index(s) + 1)
+
+def attr_bool(elem, attr, default):
+    v = elem.get(attr)
+    return default if v is None else v == "true"
+
+def write_key(w, elem, fname):
+    values = []
+    loc_flags = 0
+    mask = 0
+    for i, (a, b) in enumerate(KEY_ATTRS):
+        v1, v2 = elem.get(a), elem.get(b)
+        if v1 is not None and v2 is not None:
+            raise Exception("%s: '%s' and '%s' are synonyms and cannot be passed at the same time." % (fname, a, b))
+        v = v1 if v1 is not None else v2
+        if v is None:
+            continue
+        if v.startswith("loc "):
+            v = v[4:]
+            loc_flags |= 1 << i
+        mask |= 1 << i
+        values.append(v)
+    for i, attr in [ (9, "anticircle"), (10, "indication") ]:
+        if elem.get(attr) is not None:
+            mask |= 1 << i
+            values.append(elem.get(attr))
+    w.varint(mask)
+    w.varint(loc_flags)
+    w.float(elem.get("width", "1"))
+    w.float(elem.get("shift", "0"))
+    for v in values:
+        w.string(v)
+
+def write_row(w, elem, fname):
+    w.float(elem.get("height", "1"))
+    w.float(elem.get("shift", "0"))
+    w.float(elem.get("scale", "0"))
+    w.varint(len(elem))
+    for key in elem:
+        if key.tag != "key":
+            raise Exception("%s: Expecting tag <key>, got <%s>" % (fname, key.tag))
+        write_key(w, key, fname)
+
+def write_keyboard(w, root, fname):
+    flags = 0
+    if attr_bool(root, "bottom_row", True): flags |= 1
+    if attr_bool(root, "embedded_number_row", False): flags |= 2
+    if attr_bool(root, "locale_extra_keys", True): flags |= 4
+    w.varint(flags)
+    w.float(root.get("width", "0"))
+    for attr in [ "script", "numpad_script" ]:
+        if root.get(attr) == "":
+            raise Exception("%s: '%s' attribute cannot be empty" % (fname, attr))
+        w.opt_string(root.get(attr))
+    w.opt_string(root.get("name"))
+    rows = [ e for e in root if e.tag == "row" ]
+    modmaps = [ e for e in root if e.tag == "modmap" ]
+    others = [ e.tag for e in root if e.tag not in ("row", "modmap") ]
+    if others:
+        raise Exception("%s: Expecting tag <row>, got <%s>" % (fname, others[0]))
+    if len(modmaps) > 1:
+        raise Exception("%s: Multiple '<modmap>' are not allowed" % fname)
+    w.varint(len(rows))
+    for row in rows:
+        write_row(w, row, fname)
+    mappings = list(modmaps[0]) if modmaps else []
+    w.varint(len(mappings))
+    for m in mappings:
+        if m.tag not in MODMAP_TAGS:
+            raise Exception("%s: Expecting tag <shift> or <fn>, got <%s>" % (fname, m.tag))
+        w.varint(MODMAP_TAGS[m.tag])
+        w.string(m.get("a"))
+        w.string(m.get("b"))
+
+# Compile the <keyboard> and <row> files. Other files are ignored.
+def generate_binary(out, files):
+    strings = {}
+    layouts = []
+    for fname in sorted(files):
+        root = XML.parse(fname).getroot()
+        w = BinaryWriter(strings)
+        if root.tag == "keyboard":
+            w.varint(0)
+            write_keyboard(w, root, fname)
+        elif root.tag == "row":
+            w.varint(1)
+            write_row(w, root, fname)
+        else:
+            continue
+        layout_id, _ = os.path.splitext(os.path.basename(fname))
+        w.string_index(layout_id)
+        layouts.append((layout_id, w.body))
+    head = BinaryWriter(strings)
+    head.body += BINARY_MAGIC + bytes([BINARY_VERSION])
+    head.varint(len(strings))
+    for s in sorted(strings, key=strings.get):
+        b = s.encode("utf-8")
+        head.varint(len(b))
+        head.body += b
+    head.varint(len(layouts))
+    for layout_id, body in layouts:
+        head.string(layout_id)
+        head.varint(len(body))
+        head.body += body
+    out.write(head.body)
+
 layouts = sort_layouts(read_layouts(glob.glob("srcs/layouts/*.xml")))
 with open("res/values/layouts.xml", "wb") as out:
-    generate_arrays(out, layouts)
\ No newline at end of file
+    generate_arrays(out, layouts)
+with open("srcs/resources/juloo/keyboard2/layouts.bin", "wb") as out:
+    generate_binary(out, glob.glob("srcs/layouts/*.xml") + glob.glob("res/xml/*.xml"))
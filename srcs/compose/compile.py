@@ -8,6 +8,8 @@ from array import array
 # Takes input files as arguments and generate a Java file.
 # The initial state for each input is generated as a constant named after the
 # input file.
+# The state machine is written to the binary file given with the '--binary'
+# option, which is loaded by [ComposeKey.load_data()].
 
 # Parse symbol names from keysymdef.h. Many compose sequences in
 # en_US_UTF_8_Compose.pre reference theses. For example, all the sequences on
@@ -181,43 +183,41 @@ def add_sequences_to_trie(seqs, trie):
                 existing_sequence_to_str(seq),
                 "".join(seq), result))
 
-# Compile the trie into a state machine.
-def make_automata(tries):
+# Compile the trie into a state machine. When [minimize] is true, equivalent
+# states are merged: final states with the same result and intermediate states
+# with the same transitions into the same states. Nodes are added after their
+# children so that equivalent children are already merged.
+def make_automata(tries, minimize=True):
     previous_leafs = {} # Deduplicate leafs
+    previous_trees = {} # Deduplicate intermediate states
     states = []
     def add_tree(t):
+        transitions = tuple((c, add_node(t[c])) for c in sorted(t.keys()))
+        if minimize and transitions in previous_trees:
+            return previous_trees[transitions]
         this_node_index = len(states)
-        # Index and size of the new node
-        i = len(states)
-        s = len(t.keys())
-        # Add node header
-        states.append(("\0", s + 1))
-        i += 1
-        # Reserve space for the current node in both arrays
-        for c in range(s):
-            states.append((None, None))
-        # Add nested nodes and fill the current node
-        for c in sorted(t.keys()):
-            states[i] = (c, add_node(t[c]))
-            i += 1
+        previous_trees[transitions] = this_node_index
+        # Add node header, followed by the transitions.
+        states.append(("\0", len(transitions) + 1))
+        states.extend(transitions)
         return this_node_index
     def add_leaf(c):
-        if c in previous_leafs:
-            return previous_leafs[c]
-        this_node_index = len(states)
-        previous_leafs[c] = this_node_index
         # There are two encoding for leafs: character final state for 15-bit
         # characters and string final state for the rest.
         if len(c) > 1 or ord(c[0]) > 32767: # String final state
             # A ':' can be added to the result of a sequence to force a string
             # final state. For example, to go through KeyValue lookup.
             if c.startswith(":"): c = c[1:]
-            javachars = array('H', c.encode("UTF-16-LE"))
-            states.append((-1, len(javachars) + 1))
-            for c in javachars:
-                states.append((c, 0))
+            leaf = [(-1, len(c.encode("UTF-16-LE")) // 2 + 1)]
+            leaf.extend((c, 0) for c in array('H', c.encode("UTF-16-LE")))
         else: # Character final state
-            states.append((c, 1))
+            leaf = [(c, 1)]
+        key = tuple(leaf)
+        if key in previous_leafs:
+            return previous_leafs[key]
+        this_node_index = len(states)
+        previous_leafs[key] = this_node_index
+        states.extend(leaf)
         return this_node_index
     def add_node(n):
         if type(n) == str:
@@ -228,6 +228,77 @@ def make_automata(tries):
     entry_states = { n: add_tree(root) for n, root in tries.items() }
     return entry_states, states
 
+# Hash function used for the transition table, must be identical to
+# [ComposeKey.hash].
+def transition_hash(key, seed):
+    m = 0xFFFFFFFF
+    h = (key ^ (seed * 0x9E3779B9)) & m
+    h ^= h >> 16
+    h = (h * 0x85EBCA6B) & m
+    h ^= h >> 13
+    h = (h * 0xC2B2AE35) & m
+    h ^= h >> 16
+    return h & 0x7FFFFFFF
+
+# Build a perfect hash table mapping a transition (state, char) to the index
+# of the transition in the state machine, using the hash and displace method.
+# Keys are grouped into buckets, a displacement is searched for each bucket
+# such that the keys of the bucket land on free slots. Returns the
+# displacement array and the slots array.
+def make_transition_hash(machine):
+    entries = []
+    i = 0
+    while i < len(machine):
+        s, e = machine[i]
+        if s == "\0": # Intermediate state
+            for t in range(i + 1, i + e):
+                entries.append(((i << 16) | ord(machine[t][0]), t))
+            i += e
+        elif s == -1: # String final state
+            i += e
+        else:
+            i += 1
+    n_buckets = max(1, (len(entries) + 3) // 4)
+    n_slots = max(1, int(len(entries) / 0.85))
+    buckets = [ [] for _ in range(n_buckets) ]
+    for key, t in entries:
+        buckets[transition_hash(key, 0) % n_buckets].append((key, t))
+    disp = [0] * n_buckets
+    slots = [0] * n_slots # 0 is never a transition
+    for b in sorted(range(n_buckets), key=lambda b: -len(buckets[b])):
+        if len(buckets[b]) == 0:
+            break
+        for d in range(1, 0x10000):
+            pos = [ transition_hash(key, d) % n_slots for key, _ in buckets[b] ]
+            if len(set(pos)) == len(pos) and all(slots[p] == 0 for p in pos):
+                break
+        else:
+            raise Exception("Failed to build the transition hash table")
+        disp[b] = d
+        for p, (_, t) in zip(pos, buckets[b]):
+            slots[p] = t
+    return disp, slots
+
+def lookup_transition_hash(machine, disp, slots, state, c):
+    key = (state << 16) | ord(c)
+    d = disp[transition_hash(key, 0) % len(disp)]
+    t = slots[transition_hash(key, d) % len(slots)]
+    if t <= state or t >= state + machine[state][1] or machine[t][0] != c:
+        return None
+    return t
+
+# Check that every sequences can be followed using the transition table.
+def check_transition_hash(tries, entry_states, machine, disp, slots):
+    def check_node(t, state):
+        for c, r in t.items():
+            tr = lookup_transition_hash(machine, disp, slots, state, c)
+            if tr is None:
+                raise Exception("Transition table is missing a transition")
+            if not isinstance(r, str):
+                check_node(r, machine[tr][1])
+    for name, root in tries.items():
+        check_node(root, entry_states[name])
+
 # Debug
 def print_automata(automata):
     i = 0
@@ -262,41 +333,9 @@ def check_for_warnings(tries):
                 elif r != r_l:
                     warn(f"is not the same as {seq_to_str(seq_l)} = {r_l}{ll_warning}", seq=seq, result=r)
 
-def batched(ar, n):
-    i = 0
-    while i + n < len(ar):
-        yield ar[i:i+n]
-        i += n
-    if i < len(ar):
-        yield ar[i:]
-
-# Print the state machine compiled by make_automata into java code that can be
-# used by [ComposeKeyData.java].
-def gen_java(entry_states, machine):
-    chars_map = {
-            # These characters cannot be used in unicode form as Java's parser
-            # unescape unicode sequences before parsing.
-            -1: "\\uFFFF",
-            "\"": "\\\"",
-            "\\": "\\\\",
-            "\n": "\\n",
-            "\r": "\\r",
-            ord("\""): "\\\"",
-            ord("\\"): "\\\\",
-            ord("\n"): "\\n",
-            ord("\r"): "\\r",
-            }
-    def char_repr(c):
-        if c in chars_map:
-            return chars_map[c]
-        if type(c) == int: # The edges array contains ints
-            return "\\u%04x" % c
-        if c in string.printable:
-            return c
-        return "\\u%04x" % ord(c)
-    def gen_array(array):
-        chars = list(map(char_repr, array))
-        return "\" +\n    \"".join(map(lambda b: "".join(b), batched(chars, 72)))
+# Print the entry states of the state machine compiled by make_automata into
+# java code that can be used by [ComposeKeyData.java].
+def gen_java(entry_states):
     def gen_entry_state(s):
         name, state = s
         return "  public static final int %s = %d;" % (name, state)
@@ -306,23 +345,49 @@ def gen_java(entry_states, machine):
 
 public final class ComposeKeyData
 {
-  public static final char[] states =
-    ("%s").toCharArray();
-
-  public static final char[] edges =
-    ("%s").toCharArray();
-
 %s
 }""" % (
-    # Break the edges array every few characters using string concatenation.
-    gen_array(map(lambda s: s[0], machine)),
-    gen_array(map(lambda s: s[1], machine)),
     "\n".join(map(gen_entry_state, entry_states.items())),
 ))
 
+# Write the state machine into a binary file. The file starts with a magic
+# number and a version, followed by the arrays [states], [edges], [hash_disp]
+# and [hash_slots]. Each array is a length followed by the values, every
+# integers are encoded as unsigned LEB128 varints.
+# See [ComposeKey.read_data()].
+def gen_binary(fname, machine, hash_disp, hash_slots):
+    def cell_value(c):
+        if isinstance(c, str):
+            return ord(c)
+        return c & 0xFFFF # -1 is the header of string final states
+    out = bytearray(b"UKCD\x01")
+    def varint(v):
+        while v >= 0x80:
+            out.append((v & 0x7F) | 0x80)
+            v >>= 7
+        out.append(v)
+    def gen_array(ar):
+        ar = list(ar)
+        varint(len(ar))
+        for v in ar:
+            varint(v)
+    gen_array(cell_value(s) for s, _ in machine)
+    gen_array(e for _, e in machine)
+    gen_array(hash_disp)
+    gen_array(hash_slots)
+    with open(fname, "wb") as f:
+        f.write(out)
+    return len(out)
+
+args = sys.argv[1:]
+binary_out = None
+if len(args) >= 2 and args[0] == "--binary":
+    binary_out = args[1]
+    args = args[2:]
+
 total_sequences = 0
 tries = {} # Orderred dict
-for fname in sorted(sys.argv[1:]):
+for fname in sorted(args):
     tname, _ = os.path.splitext(os.path.basename(fname))
     if os.path.isdir(fname):
         sequences = parse_sequences_dir(fname)
@@ -333,7 +398,14 @@ for fname in sorted(sys.argv[1:]):
 
 check_for_warnings(tries["compose"])
 entry_states, automata = make_automata(tries)
-gen_java(entry_states, automata)
+_, unminimized = make_automata(tries, minimize=False)
+hash_disp, hash_slots = make_transition_hash(automata)
+check_transition_hash(tries, entry_states, automata, hash_disp, hash_slots)
+gen_java(entry_states)
+if binary_out is not None:
+    binary_size = gen_binary(binary_out, automata, hash_disp, hash_slots)
+    print("Wrote %d bytes into %s." % (binary_size, binary_out), file=sys.stderr)
 
 print("Compiled %d sequences into %d states. Dropped %d sequences. Generated %d warnings." % (total_sequences, len(automata), dropped_sequences, warning_count), file=sys.stderr)
+print("Minimization reduced the size of 'states' and 'edges' from %d to %d. The transition table has %d slots." % (len(unminimized), len(automata), len(hash_slots)), file=sys.stderr)
 # print_automata(automata)
@@ -0,0 +1,247 @@
+package juloo.keyboard2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/** The layouts in [srcs/layouts] and [res/xml], compiled by [gen_layouts.py]
+    into a Java resource. Decoding a layout doesn't involve XML parsing and
+    each key name is resolved once. The XML files remain the source of truth,
+    see [KeyboardData.load()]. */
+public final class CompiledLayouts
+{
+  /** Returns [null] if [name] is not a compiled <keyboard>. */
+  public static KeyboardData load_keyboard(String name) throws IOException
+  {
+    CompiledLayouts c = get();
+    int[] l = c._layouts.get(name);
+    if (l == null)
+      return null;
+    int[] pos = new int[]{ l[0] };
+    if (c.read_varint(pos) != TYPE_KEYBOARD)
+      return null;
+    return c.read_keyboard(pos);
+  }
+
+  /** Returns [null] if [name] is not a compiled <row>. */
+  public static KeyboardData.Row load_row(String name) throws IOException
+  {
+    CompiledLayouts c = get();
+    int[] l = c._layouts.get(name);
+    if (l == null)
+      return null;
+    int[] pos = new int[]{ l[0] };
+    if (c.read_varint(pos) != TYPE_ROW)
+      return null;
+    return c.read_row(pos);
+  }
+
+  /** The names of the compiled layouts, used in tests. */
+  static Iterable<String> names() throws IOException
+  {
+    return get()._layouts.keySet();
+  }
+
+  static final String RESOURCE = "layouts.bin";
+  static final int VERSION = 1;
+  static final int TYPE_KEYBOARD = 0;
+  static final int TYPE_ROW = 1;
+  static final int N_KEY_VALUES = 9;
+  static final int MASK_ANTICIRCLE = 1 << 9;
+  static final int MASK_INDICATION = 1 << 10;
+
+  final byte[] _b;
+  /** Offset of each string in [_b], followed by its length. */
+  final int[] _string_pos;
+  /** Decoded on demand. */
+  final String[] _strings;
+  final KeyValue[] _keys;
+  /** Offset and length of each layout, by name. */
+  final HashMap<String, int[]> _layouts = new HashMap<String, int[]>();
+
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  CompiledLayouts(byte[] b) throws IOException
+  {
+    _b = b;
+    if (b.length < 5 || b[0] != 'U' || b[1] != 'K' || b[2] != 'L'
+        || b[3] != 'Y' || b[4] != VERSION)
+      throw new IOException("Malformed compiled layouts");
+    int[] pos = new int[]{ 5 };
+    int n_strings = read_varint(pos);
+    _string_pos = new int[n_strings * 2];
+    _strings = new String[n_strings];
+    _keys = new KeyValue[n_strings];
+    for (int i = 0; i < n_strings; i++)
+    {
+      int len = read_varint(pos);
+      _string_pos[i * 2] = pos[0];
+      _string_pos[i * 2 + 1] = len;
+      pos[0] += len;
+    }
+    int n_layouts = read_varint(pos);
+    for (int i = 0; i < n_layouts; i++)
+    {
+      String name = read_string(pos);
+      int len = read_varint(pos);
+      _layouts.put(name, new int[]{ pos[0], len });
+      pos[0] += len;
+    }
+    if (pos[0] != b.length)
+      throw new IOException("Malformed compiled layouts");
+  }
+
+  KeyboardData read_keyboard(int[] pos) throws IOException
+  {
+    int flags = read_varint(pos);
+    float specified_kw = read_float(pos);
+    String script = read_opt_string(pos);
+    String numpad_script = read_opt_string(pos);
+    if (numpad_script == null)
+      numpad_script = script;
+    String name = read_opt_string(pos);
+    int n_rows = read_varint(pos);
+    ArrayList<KeyboardData.Row> rows = new ArrayList<KeyboardData.Row>(n_rows);
+    for (int i = 0; i < n_rows; i++)
+      rows.add(read_row(pos));
+    int n_mappings = read_varint(pos);
+    Modmap modmap = null;
+    if (n_mappings > 0)
+    {
+      modmap = new Modmap();
+      Modmap.M[] ms = Modmap.M.values();
+      for (int i = 0; i < n_mappings; i++)
+      {
+        Modmap.M m = ms[read_varint(pos)];
+        KeyValue a = read_key(pos);
+        modmap.add(m, a, read_key(pos));
+      }
+    }
+    float kw = (specified_kw != 0f) ? specified_kw
+      : KeyboardData.compute_max_width(rows);
+    return new KeyboardData(rows, kw, modmap, script, numpad_script, name,
+        (flags & 1) != 0, (flags & 2) != 0, (flags & 4) != 0);
+  }
+
+  KeyboardData.Row read_row(int[] pos) throws IOException
+  {
+    float h = read_float(pos);
+    float shift = read_float(pos);
+    float scale = read_float(pos);
+    int n_keys = read_varint(pos);
+    ArrayList<KeyboardData.Key> keys = new ArrayList<KeyboardData.Key>(n_keys);
+    for (int i = 0; i < n_keys; i++)
+      keys.add(read_key_def(pos));
+    KeyboardData.Row row = new KeyboardData.Row(keys, h, shift);
+    if (scale > 0f)
+      row = row.updateWidth(scale);
+    return row;
+  }
+
+  KeyboardData.Key read_key_def(int[] pos) throws IOException
+  {
+    int mask = read_varint(pos);
+    int keysflags = read_varint(pos);
+    float width = read_float(pos);
+    float shift = read_float(pos);
+    KeyValue[] ks = new KeyValue[N_KEY_VALUES];
+    for (int i = 0; i < N_KEY_VALUES; i++)
+      if ((mask & (1 << i)) != 0)
+        ks[i] = read_key(pos);
+    KeyValue anticircle =
+      ((mask & MASK_ANTICIRCLE) != 0) ? read_key(pos) : null;
+    String indication =
+      ((mask & MASK_INDICATION) != 0) ? read_string(pos) : null;
+    return new KeyboardData.Key(ks, anticircle, keysflags, width, shift,
+        indication);
+  }
+
+  /** Keys are resolved once for every layouts. */
+  KeyValue read_key(int[] pos) throws IOException
+  {
+    int i = read_varint(pos);
+    KeyValue k = _keys[i];
+    if (k == null)
+    {
+      k = KeyValue.getKeyByName(string(i));
+      _keys[i] = k;
+    }
+    return k;
+  }
+
+  String read_string(int[] pos) throws IOException
+  {
+    return string(read_varint(pos));
+  }
+
+  String read_opt_string(int[] pos) throws IOException
+  {
+    int i = read_varint(pos);
+    return (i == 0) ? null : string(i - 1);
+  }
+
+  String string(int i) throws IOException
+  {
+    if (i >= _strings.length)
+      throw new IOException("Malformed compiled layouts");
+    String s = _strings[i];
+    if (s == null)
+    {
+      s = new String(_b, _string_pos[i * 2], _string_pos[i * 2 + 1], UTF8);
+      _strings[i] = s;
+    }
+    return s;
+  }
+
+  float read_float(int[] pos) throws IOException
+  {
+    int p = pos[0];
+    if (p + 4 > _b.length)
+      throw new IOException("Malformed compiled layouts");
+    int bits = ((_b[p] & 0xFF) << 24) | ((_b[p + 1] & 0xFF) << 16)
+      | ((_b[p + 2] & 0xFF) << 8) | (_b[p + 3] & 0xFF);
+    pos[0] = p + 4;
+    return Float.intBitsToFloat(bits);
+  }
+
+  int read_varint(int[] pos) throws IOException
+  {
+    int v = 0;
+    int shift = 0;
+    while (true)
+    {
+      if (pos[0] >= _b.length || shift > 28)
+        throw new IOException("Malformed compiled layouts");
+      int b = _b[pos[0]++];
+      v |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0)
+        return v;
+      shift += 7;
+    }
+  }
+
+  private static CompiledLayouts _instance = null;
+
+  static synchronized CompiledLayouts get() throws IOException
+  {
+    if (_instance == null)
+    {
+      try (InputStream inp =
+          CompiledLayouts.class.getResourceAsStream(RESOURCE))
+      {
+        if (inp == null)
+          throw new IOException("Missing resource " + RESOURCE);
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(65536);
+        byte[] chunk = new byte[8192];
+        int n;
+        while ((n = inp.read(chunk)) > 0)
+          buf.write(chunk, 0, n);
+        _instance = new CompiledLayouts(buf.toByteArray());
+      }
+    }
+    return _instance;
+  }
+}
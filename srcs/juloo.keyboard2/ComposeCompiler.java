@@ -0,0 +1,444 @@
+package juloo.keyboard2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** Compile compose sequences written in Xorg's Compose format and merge them
+    into the built-in state machine. This is the on-device counterpart of
+    [srcs/compose/compile.py], for the sequences entered by the user.
+    User sequences take priority over the built-in sequences of the
+    [ComposeKeyData.compose] state. */
+public final class ComposeCompiler
+{
+  /** A node of the trie of sequences. Values are either a [Node] or a
+      [String], the result of a sequence. */
+  public static final class Node extends TreeMap<Character, Object>
+  {
+    /** Number of sequences that couldn't be parsed or that collide with a
+        previous sequence. */
+    public int dropped = 0;
+    public int sequences = 0;
+  }
+
+  /** Parse the sequences starting with [<Multi_key>]. Other lines are
+      ignored. */
+  public static Node parse(String src)
+  {
+    String[] lines = src.split("\r?\n");
+    // Names can be defined by the result of other sequences.
+    HashMap<String, String> char_names = new HashMap<String, String>();
+    for (String line : lines)
+    {
+      Matcher m = LINE.matcher(line);
+      if (m.matches() && m.group(3) != null)
+        char_names.put(m.group(3), parse_result(m.group(2)));
+    }
+    Node root = new Node();
+    for (String line : lines)
+    {
+      if (!line.startsWith(MULTI_KEY))
+        continue;
+      Matcher m = LINE.matcher(line);
+      m.region(MULTI_KEY.length(), line.length());
+      if (!m.matches())
+        continue;
+      String seq = parse_seq(m.group(1), char_names);
+      if (seq == null || seq.length() == 0)
+      {
+        root.dropped++;
+        continue;
+      }
+      if (add_seq(root, seq, parse_result(m.group(2))))
+        root.sequences++;
+      else
+        root.dropped++;
+    }
+    return root;
+  }
+
+  static final String MULTI_KEY = "<Multi_key>";
+  static final Pattern LINE = Pattern.compile(
+      "((?:\\s*<[^>]+>)+)\\s*:\\s*\"((?:[^\"\\\\]+|\\\\.)+)\"\\s*(\\S+)?\\s*(?:#.+)?");
+  static final Pattern SEQ_CHAR =
+    Pattern.compile("\\s*<(?:U([a-fA-F0-9]{4,6})|([^>]+))>");
+
+  /** Returns [null] if a char is unknown or out of range. */
+  static String parse_seq(String def, Map<String, String> char_names)
+  {
+    StringBuilder b = new StringBuilder();
+    Matcher m = SEQ_CHAR.matcher(def);
+    while (m.find())
+    {
+      String c;
+      if (m.group(1) != null)
+      {
+        int cp = Integer.parseInt(m.group(1), 16);
+        if (cp > 0xFFFF)
+          return null;
+        c = String.valueOf((char)cp);
+      }
+      else
+      {
+        c = m.group(2);
+        if (c.length() > 1)
+        {
+          c = char_names.get(c);
+          if (c == null)
+            c = keysym(m.group(2));
+        }
+      }
+      // Sequence chars must fit in a 16-bit char.
+      if (c == null || c.length() != 1)
+        return null;
+      b.append(c);
+    }
+    return b.toString();
+  }
+
+  static String parse_result(String r)
+  {
+    if (r.length() == 2 && r.charAt(0) == '\\')
+      return r.substring(1);
+    return r;
+  }
+
+  /** Returns [false] if the sequence collides with an existing sequence. */
+  static boolean add_seq(Node root, String seq, String result)
+  {
+    Node t = root;
+    int last = seq.length() - 1;
+    for (int i = 0; i < last; i++)
+    {
+      Object next = t.get(seq.charAt(i));
+      if (next == null)
+      {
+        next = new Node();
+        t.put(seq.charAt(i), next);
+      }
+      else if (!(next instanceof Node))
+        return false;
+      t = (Node)next;
+    }
+    if (t.containsKey(seq.charAt(last)))
+      return false;
+    t.put(seq.charAt(last), result);
+    return true;
+  }
+
+  /** Merge the sequences of [user] into the [ComposeKeyData.compose] state of
+      [builtin]. Built-in states are unchanged and new states are added after
+      them. Throws [IllegalArgumentException] if the state machine would be
+      too large. */
+  public static ComposeKey.Data compile(ComposeKey.Data builtin, Node user)
+  {
+    Builder b = new Builder(builtin);
+    int entry = b.merge(user, builtin.compose_entry);
+    if (b.states.length() > 0xFFFF)
+      throw new IllegalArgumentException("Too many compose sequences");
+    char[] states = b.states.toString().toCharArray();
+    char[] edges = b.edges.toString().toCharArray();
+    char[][] hash = make_transition_hash(states, edges);
+    return new ComposeKey.Data(states, edges, hash[0], hash[1], entry);
+  }
+
+  static final class Builder
+  {
+    final StringBuilder states;
+    final StringBuilder edges;
+    final HashMap<String, Integer> leafs = new HashMap<String, Integer>();
+
+    Builder(ComposeKey.Data builtin)
+    {
+      states = new StringBuilder(builtin.states.length * 2);
+      states.append(builtin.states);
+      edges = new StringBuilder(builtin.edges.length * 2);
+      edges.append(builtin.edges);
+    }
+
+    /** Add a state that has the transitions of [node] and the transitions
+        of the existing intermediate state [base] that are not in [node].
+        [base] is [-1] if there is no such state. */
+    int merge(Node node, int base)
+    {
+      TreeMap<Character, Integer> targets = new TreeMap<Character, Integer>();
+      if (base >= 0)
+        for (int t = base + 1; t < base + edges.charAt(base); t++)
+          targets.put(states.charAt(t), (int)edges.charAt(t));
+      for (Map.Entry<Character, Object> e : node.entrySet())
+      {
+        Object v = e.getValue();
+        int next;
+        if (v instanceof String)
+          next = add_leaf((String)v);
+        else
+        {
+          Integer prev = targets.get(e.getKey());
+          int prev_state =
+            (prev != null && states.charAt(prev) == 0) ? prev : -1;
+          next = merge((Node)v, prev_state);
+        }
+        targets.put(e.getKey(), next);
+      }
+      // Nodes are added after their children, like in [compile.py].
+      int index = states.length();
+      states.append('\0');
+      edges.append((char)(targets.size() + 1));
+      for (Map.Entry<Character, Integer> e : targets.entrySet())
+      {
+        states.append(e.getKey());
+        edges.append((char)(int)e.getValue());
+      }
+      return index;
+    }
+
+    int add_leaf(String r)
+    {
+      Integer prev = leafs.get(r);
+      if (prev != null)
+        return prev;
+      int index = states.length();
+      leafs.put(r, index);
+      if (r.length() > 1 || r.charAt(0) > 32767) // String final state
+      {
+        if (r.startsWith(":"))
+          r = r.substring(1);
+        states.append('\uFFFF');
+        edges.append((char)(r.length() + 1));
+        for (int i = 0; i < r.length(); i++)
+        {
+          states.append(r.charAt(i));
+          edges.append('\0');
+        }
+      }
+      else // Character final state
+      {
+        states.append(r.charAt(0));
+        edges.append((char)1);
+      }
+      return index;
+    }
+  }
+
+  /** Build the perfect hash table of the transitions, like
+      [make_transition_hash] in [compile.py]. Returns the displacement and
+      the slots arrays. */
+  static char[][] make_transition_hash(char[] states, char[] edges)
+  {
+    int n = 0;
+    for (int s = 0; s < states.length; s += state_size(states, edges, s))
+      if (states[s] == 0)
+        n += edges[s] - 1;
+    int[] keys = new int[n];
+    char[] trans = new char[n];
+    int i = 0;
+    for (int s = 0; s < states.length; s += state_size(states, edges, s))
+      if (states[s] == 0)
+        for (int t = s + 1; t < s + edges[s]; t++)
+        {
+          keys[i] = (s << 16) | states[t];
+          trans[i] = (char)t;
+          i++;
+        }
+    int n_buckets = Math.max(1, (n + 3) / 4);
+    int n_slots = Math.max(1, (int)(n / 0.85));
+    // Sort the keys by bucket.
+    int[] bucket_of = new int[n];
+    int[] bucket_start = new int[n_buckets + 1];
+    for (i = 0; i < n; i++)
+    {
+      bucket_of[i] = (ComposeKey.hash(keys[i], 0) & 0x7FFFFFFF) % n_buckets;
+      bucket_start[bucket_of[i] + 1]++;
+    }
+    for (int b = 0; b < n_buckets; b++)
+      bucket_start[b + 1] += bucket_start[b];
+    int[] sorted = new int[n];
+    int[] fill = Arrays.copyOf(bucket_start, n_buckets);
+    for (i = 0; i < n; i++)
+      sorted[fill[bucket_of[i]]++] = i;
+    // Place the largest buckets first.
+    Integer[] order = new Integer[n_buckets];
+    for (int b = 0; b < n_buckets; b++)
+      order[b] = b;
+    final int[] starts = bucket_start;
+    Arrays.sort(order, (a, b) ->
+        (starts[b + 1] - starts[b]) - (starts[a + 1] - starts[a]));
+    char[] disp = new char[n_buckets];
+    char[] slots = new char[n_slots];
+    int[] pos = new int[n];
+    for (int b : order)
+    {
+      int start = bucket_start[b];
+      int len = bucket_start[b + 1] - start;
+      if (len == 0)
+        break;
+      int d = 1;
+      for (; d <= 0xFFFF; d++)
+        if (try_displacement(keys, sorted, start, len, d, slots, pos))
+          break;
+      if (d > 0xFFFF)
+        throw new IllegalArgumentException("Failed to build the transition table");
+      disp[b] = (char)d;
+      for (int j = 0; j < len; j++)
+        slots[pos[j]] = trans[sorted[start + j]];
+    }
+    return new char[][]{ disp, slots };
+  }
+
+  /** Whether the keys of a bucket land on distinct and free slots with
+      displacement [d]. The slots are written to [pos]. */
+  static boolean try_displacement(int[] keys, int[] sorted, int start, int len,
+      int d, char[] slots, int[] pos)
+  {
+    for (int j = 0; j < len; j++)
+    {
+      int p = (ComposeKey.hash(keys[sorted[start + j]], d) & 0x7FFFFFFF)
+        % slots.length;
+      if (slots[p] != 0)
+        return false;
+      for (int k = 0; k < j; k++)
+        if (pos[k] == p)
+          return false;
+      pos[j] = p;
+    }
+    return true;
+  }
+
+  /** Number of cells occupied by the state [s]. */
+  static int state_size(char[] states, char[] edges, int s)
+  {
+    return (states[s] == 0 || states[s] == 0xFFFF) ? edges[s] : 1;
+  }
+
+  /** Compile [src] and merge it into [builtin], or load the result from a
+      previous call from [cache_file]. The cache is keyed by a hash of the
+      source and of the built-in data. */
+  public static ComposeKey.Data load_or_compile(ComposeKey.Data builtin,
+      String src, File cache_file)
+  {
+    long key = fingerprint(builtin, src);
+    try (DataInputStream inp = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(cache_file))))
+    {
+      if (inp.readLong() == key)
+      {
+        int entry = inp.readInt();
+        return ComposeKey.read_data(inp, entry);
+      }
+    }
+    catch (IOException _e) {} // Missing or invalid cache
+    ComposeKey.Data data = compile(builtin, parse(src));
+    File tmp = new File(cache_file.getPath() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(tmp))))
+    {
+      out.writeLong(key);
+      out.writeInt(data.compose_entry);
+      ComposeKey.write_data(data, out);
+    }
+    catch (IOException e)
+    {
+      Logs.exn("Failed to write the compose cache", e);
+      return data;
+    }
+    if (!tmp.renameTo(cache_file))
+      tmp.delete();
+    return data;
+  }
+
+  /** FNV-1a hash of the source and of the built-in state machine. */
+  static long fingerprint(ComposeKey.Data builtin, String src)
+  {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < src.length(); i++)
+      h = (h ^ src.charAt(i)) * 0x100000001b3L;
+    for (char c : builtin.states)
+      h = (h ^ c) * 0x100000001b3L;
+    for (char c : builtin.edges)
+      h = (h ^ c) * 0x100000001b3L;
+    return h;
+  }
+
+  /** Returns [null] if the keysym is unknown. */
+  static String keysym(String name)
+  {
+    int i = Arrays.binarySearch(KEYSYM_NAMES_SORTED, name);
+    if (i < 0)
+      return null;
+    return String.valueOf(KEYSYM_CHARS.charAt(KEYSYM_INDEX[i]));
+  }
+
+  /** Names of the ASCII and Latin-1 keysyms, from [keysymdef.h]. Sequences
+      using other keysyms must use the [<U1234>] syntax or a name defined in
+      the same file. */
+  static final String[] KEYSYM_NAMES = new String[]{
+    "space", "exclam", "quotedbl", "numbersign", "dollar", "percent",
+    "ampersand", "apostrophe", "parenleft", "parenright", "asterisk", "plus",
+    "comma", "minus", "period", "slash", "colon", "semicolon", "less",
+    "equal", "greater", "question", "at", "bracketleft", "backslash",
+    "bracketright", "asciicircum", "underscore", "grave", "braceleft", "bar",
+    "braceright", "asciitilde", "nobreakspace", "exclamdown", "cent",
+    "sterling", "currency", "yen", "brokenbar", "section", "diaeresis",
+    "copyright", "ordfeminine", "guillemotleft", "notsign", "hyphen",
+    "registered", "macron", "degree", "plusminus", "twosuperior",
+    "threesuperior", "acute", "mu", "paragraph", "periodcentered", "cedilla",
+    "onesuperior", "masculine", "guillemotright", "onequarter", "onehalf",
+    "threequarters", "questiondown", "Agrave", "Aacute", "Acircumflex",
+    "Atilde", "Adiaeresis", "Aring", "AE", "Ccedilla", "Egrave", "Eacute",
+    "Ecircumflex", "Ediaeresis", "Igrave", "Iacute", "Icircumflex",
+    "Idiaeresis", "ETH", "Ntilde", "Ograve", "Oacute", "Ocircumflex",
+    "Otilde", "Odiaeresis", "multiply", "Ooblique", "Oslash", "Ugrave",
+    "Uacute", "Ucircumflex", "Udiaeresis", "Yacute", "THORN", "ssharp",
+    "agrave", "aacute", "acircumflex", "atilde", "adiaeresis", "aring", "ae",
+    "ccedilla", "egrave", "eacute", "ecircumflex", "ediaeresis", "igrave",
+    "iacute", "icircumflex", "idiaeresis", "eth", "ntilde", "ograve",
+    "oacute", "ocircumflex", "otilde", "odiaeresis", "division", "ooblique",
+    "oslash", "ugrave", "uacute", "ucircumflex", "udiaeresis", "yacute",
+    "thorn", "ydiaeresis"
+  };
+
+  /** The char corresponding to each name in [KEYSYM_NAMES]. */
+  static final String KEYSYM_CHARS =
+    "\u0020\u0021\"\u0023\u0024\u0025\u0026\u0027\u0028\u0029\u002a\u002b" +
+    "\u002c\u002d\u002e\u002f\u003a\u003b\u003c\u003d\u003e\u003f\u0040\u005b" +
+    "\\\u005d\u005e\u005f\u0060\u007b\u007c\u007d\u007e\u00a0\u00a1\u00a2" +
+    "\u00a3\u00a4\u00a5\u00a6\u00a7\u00a8\u00a9\u00aa\u00ab\u00ac\u00ad\u00ae" +
+    "\u00af\u00b0\u00b1\u00b2\u00b3\u00b4\u00b5\u00b6\u00b7\u00b8\u00b9\u00ba" +
+    "\u00bb\u00bc\u00bd\u00be\u00bf\u00c0\u00c1\u00c2\u00c3\u00c4\u00c5\u00c6" +
+    "\u00c7\u00c8\u00c9\u00ca\u00cb\u00cc\u00cd\u00ce\u00cf\u00d0\u00d1\u00d2" +
+    "\u00d3\u00d4\u00d5\u00d6\u00d7\u00d8\u00d8\u00d9\u00da\u00db\u00dc\u00dd" +
+    "\u00de\u00df\u00e0\u00e1\u00e2\u00e3\u00e4\u00e5\u00e6\u00e7\u00e8\u00e9" +
+    "\u00ea\u00eb\u00ec\u00ed\u00ee\u00ef\u00f0\u00f1\u00f2\u00f3\u00f4\u00f5" +
+    "\u00f6\u00f7\u00f8\u00f8\u00f9\u00fa\u00fb\u00fc\u00fd\u00fe\u00ff";
+
+  static final String[] KEYSYM_NAMES_SORTED;
+  /** Index in [KEYSYM_CHARS] of the names in [KEYSYM_NAMES_SORTED]. */
+  static final int[] KEYSYM_INDEX;
+
+  static
+  {
+    int n = KEYSYM_NAMES.length;
+    Integer[] order = new Integer[n];
+    for (int i = 0; i < n; i++)
+      order[i] = i;
+    Arrays.sort(order, (a, b) -> KEYSYM_NAMES[a].compareTo(KEYSYM_NAMES[b]));
+    KEYSYM_NAMES_SORTED = new String[n];
+    KEYSYM_INDEX = new int[n];
+    for (int i = 0; i < n; i++)
+    {
+      KEYSYM_NAMES_SORTED[i] = KEYSYM_NAMES[order[i]];
+      KEYSYM_INDEX[i] = order[i];
+    }
+  }
+}
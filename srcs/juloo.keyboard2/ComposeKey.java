@@ -1,6 +1,16 @@
 package juloo.keyboard2;
 
+import android.os.Handler;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
 
 public final class ComposeKey
 {
@@ -22,13 +32,24 @@ public final class ComposeKey
       sequence matched. */
   public static KeyValue apply(int prev, char c)
   {
-    char[] states = ComposeKeyData.states;
-    char[] edges = ComposeKeyData.edges;
-    int prev_length = edges[prev];
-    int next = Arrays.binarySearch(states, prev + 1, prev + prev_length, c);
-    if (next < 0)
+    return apply(data(), prev, c);
+  }
+
+  static KeyValue apply(Data data, int prev, char c)
+  {
+    int t = transition(data, prev, c);
+    if (t < 0)
       return null;
-    next = edges[next];
+    return result(data, t);
+  }
+
+  /** The result of taking the transition [t]. */
+  static KeyValue result(Data data, int t)
+  {
+    char[] states = data.states;
+    char[] edges = data.edges;
+    char c = states[t];
+    int next = edges[t];
     int next_header = states[next];
     if (next_header == 0) // Enter a new intermediate state.
       return KeyValue.makeComposePending(String.valueOf(c), next, 0);
@@ -42,16 +63,54 @@ public final class ComposeKey
       return KeyValue.makeCharKey((char)next_header);
   }
 
+  /** Index of the transition from state [prev] with char [c] or [-1]. Looked
+      up in the perfect hash table generated by [compile.py]. */
+  static int transition(Data data, int prev, char c)
+  {
+    // The sequences of the user are merged into a different state.
+    if (prev == ComposeKeyData.compose)
+      prev = data.compose_entry;
+    // [prev] might come from a previous version of the data.
+    else if (prev >= data.states.length)
+      return -1;
+    char[] disp = data.hash_disp;
+    char[] slots = data.hash_slots;
+    int key = (prev << 16) | c;
+    int d = disp[(hash(key, 0) & 0x7FFFFFFF) % disp.length];
+    int t = slots[(hash(key, d) & 0x7FFFFFFF) % slots.length];
+    // The slot might contain an unrelated transition.
+    if (t <= prev || t >= prev + data.edges[prev] || data.states[t] != c)
+      return -1;
+    return t;
+  }
+
+  /** Must be identical to [transition_hash] in [compile.py]. */
+  static int hash(int key, int seed)
+  {
+    int h = key ^ (seed * 0x9E3779B9);
+    h ^= h >>> 16;
+    h *= 0x85EBCA6B;
+    h ^= h >>> 13;
+    h *= 0xC2B2AE35;
+    h ^= h >>> 16;
+    return h;
+  }
+
   /** Apply each char of a string to a sequence. Returns [null] if no sequence
       matched. */
   public static KeyValue apply(int prev, String s)
+  {
+    return apply(data(), prev, s);
+  }
+
+  static KeyValue apply(Data data, int prev, String s)
   {
     final int len = s.length();
     int i = 0;
     if (len == 0) return null;
     while (true)
     {
-      KeyValue k = apply(prev, s.charAt(i));
+      KeyValue k = apply(data, prev, s.charAt(i));
       i++;
       if (k == null) return null;
       if (i >= len) return k;
@@ -61,6 +120,316 @@ public final class ComposeKey
     }
   }
 
+  /** The state machine, see below. The entry states are in
+      [ComposeKeyData]. */
+  static final class Data
+  {
+    final char[] states;
+    final char[] edges;
+    final char[] hash_disp;
+    final char[] hash_slots;
+    /** State used in place of [ComposeKeyData.compose]. Different when the
+        sequences of the user are merged, see [ComposeCompiler]. */
+    final int compose_entry;
+
+    /** Indexed by state, computed on demand by [lookahead()]. */
+    Lookahead[] lookaheads = null;
+
+    Data(char[] s, char[] e, char[] hd, char[] hs, int ce)
+    {
+      states = s;
+      edges = e;
+      hash_disp = hd;
+      hash_slots = hs;
+      compose_entry = ce;
+    }
+  }
+
+  /** The transitions of an intermediate state and their results. Used to
+      render the keyboard while a sequence is pending without walking the
+      state machine for every keys. */
+  public static final class Lookahead
+  {
+    /** The chars that have a transition, sorted. */
+    public final char[] chars;
+    /** The result of the transitions in [chars], as returned by [apply()]. */
+    public final KeyValue[] results;
+    private final Data _data;
+    private final int _state;
+    private List<KeyValue> _completions = null;
+
+    Lookahead(Data data, int state)
+    {
+      _data = data;
+      _state = state;
+      int first = state + 1;
+      int n = (state < 0) ? 0 : data.edges[state] - 1;
+      chars = Arrays.copyOfRange(data.states, first, first + n);
+      results = new KeyValue[n];
+      for (int i = 0; i < n; i++)
+        results[i] = result(data, first + i);
+    }
+
+    /** Returns [null] if there's no transition for [c]. */
+    public KeyValue apply(char c)
+    {
+      int i = Arrays.binarySearch(chars, c);
+      return (i < 0) ? null : results[i];
+    }
+
+    /** The final results reachable from this state, without duplicates.
+        Computed on the first call. */
+    public List<KeyValue> completions()
+    {
+      if (_completions == null)
+      {
+        LinkedHashSet<KeyValue> finals = new LinkedHashSet<KeyValue>();
+        if (_state >= 0)
+          collect_completions(_data, _state, finals,
+              new boolean[_data.states.length]);
+        _completions =
+          Collections.unmodifiableList(new ArrayList<KeyValue>(finals));
+      }
+      return _completions;
+    }
+  }
+
+  /** The [Lookahead] of [state]. Returns an empty [Lookahead] if [state] is
+      not an intermediate state. */
+  public static Lookahead lookahead(int state)
+  {
+    return lookahead(data(), state);
+  }
+
+  static Lookahead lookahead(Data data, int state)
+  {
+    if (state == ComposeKeyData.compose)
+      state = data.compose_entry;
+    // [state] might come from a previous version of the data.
+    if (state < 0 || state >= data.states.length || data.states[state] != 0)
+      state = -1;
+    Lookahead[] ls = data.lookaheads;
+    if (ls == null)
+    {
+      ls = new Lookahead[data.states.length + 1];
+      data.lookaheads = ls;
+    }
+    // The empty lookahead is stored in the last slot.
+    int slot = (state < 0) ? ls.length - 1 : state;
+    Lookahead l = ls[slot];
+    if (l == null)
+    {
+      l = new Lookahead(data, state);
+      ls[slot] = l;
+    }
+    return l;
+  }
+
+  /** Depth-first walk of the intermediate states reachable from [state].
+      States are shared by several sequences and are visited once. */
+  static void collect_completions(Data data, int state,
+      LinkedHashSet<KeyValue> finals, boolean[] visited)
+  {
+    visited[state] = true;
+    char[] states = data.states;
+    char[] edges = data.edges;
+    for (int t = state + 1; t < state + edges[state]; t++)
+    {
+      int next = edges[t];
+      if (states[next] == 0)
+      {
+        if (!visited[next])
+          collect_completions(data, next, finals, visited);
+      }
+      else
+        finals.add(result(data, t));
+    }
+  }
+
+  /** Generated by [compile.py], a Java resource next to this class. */
+  static final String DATA_RESOURCE = "compose_data.bin";
+
+  private static volatile Data _data = null;
+  /** The data generated by [compile.py], without the sequences of the
+      user. */
+  private static Data _builtin_data = null;
+
+  /** Block until the data is loaded if [load_data_async()] is running. */
+  static Data data()
+  {
+    Data d = _data;
+    return (d != null) ? d : load_data();
+  }
+
+  static synchronized Data load_data()
+  {
+    if (_data == null)
+    {
+      try (InputStream inp =
+          ComposeKey.class.getResourceAsStream(DATA_RESOURCE))
+      {
+        if (inp == null)
+          throw new IOException("Missing resource " + DATA_RESOURCE);
+        _builtin_data = read_data(inp, ComposeKeyData.compose);
+        _data = _builtin_data;
+      }
+      catch (IOException e)
+      {
+        throw new RuntimeException("Failed to load the compose sequences", e);
+      }
+    }
+    return _data;
+  }
+
+  /** Load the data on a background thread, to not delay the first use of a
+      modifier. */
+  public static void load_data_async()
+  {
+    if (_data != null)
+      return;
+    Utils.run_in_background(() -> { load_data(); });
+  }
+
+  /** The user's sequences currently loaded or being loaded. */
+  private static String _user_source = "";
+  /** Incremented each time the user's sequences change. Used to not publish
+      the result of an outdated compilation. */
+  private static int _user_generation = 0;
+
+  /** Merge the sequences in Xorg's Compose format in [source] with the
+      built-in sequences. The sequences are compiled on a background thread
+      or loaded from a cache file in [cache_dir]. The built-in sequences are
+      used until the compilation is done. The result is published on
+      [handler]'s thread, then [on_change] is called. */
+  public static void set_user_sequences_async(String source,
+      final File cache_dir, final Handler handler, final Runnable on_change)
+  {
+    final int generation;
+    final String src = (source == null) ? "" : source;
+    synchronized (ComposeKey.class)
+    {
+      if (src.equals(_user_source))
+        return;
+      _user_source = src;
+      generation = ++_user_generation;
+    }
+    Utils.run_in_background(() -> {
+      Data builtin = load_data();
+      Data d = builtin;
+      if (!src.equals(""))
+      {
+        try
+        {
+          d = ComposeCompiler.load_or_compile(builtin, src,
+              new File(cache_dir, USER_CACHE_FILE));
+        }
+        catch (Exception e)
+        {
+          Logs.exn("Failed to compile the user's compose sequences", e);
+        }
+      }
+      final Data result = d;
+      handler.post(() -> {
+        synchronized (ComposeKey.class)
+        {
+          if (generation != _user_generation || result == _data)
+            return;
+          set_data(result);
+        }
+        on_change.run();
+      });
+    });
+  }
+
+  /** Replace the data and drop the results computed from the previous data.
+      Must be called on the UI thread. Not needed for the first load,
+      [data()] blocks until then. */
+  static synchronized void set_data(Data d)
+  {
+    _data = d;
+    KeyModifier.compose_data_changed();
+  }
+
+  static final String USER_CACHE_FILE = "user_compose.bin";
+
+  /** Parse the binary format written by [gen_binary] in [compile.py]. */
+  static Data read_data(InputStream inp, int compose_entry) throws IOException
+  {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream(65536);
+    byte[] chunk = new byte[8192];
+    int n;
+    while ((n = inp.read(chunk)) > 0)
+      buf.write(chunk, 0, n);
+    byte[] b = buf.toByteArray();
+    if (b.length < 5 || b[0] != 'U' || b[1] != 'K' || b[2] != 'C'
+        || b[3] != 'D' || b[4] != 1)
+      throw new IOException("Unrecognized compose data");
+    int[] pos = new int[]{ 5 };
+    char[] states = read_array(b, pos);
+    char[] edges = read_array(b, pos);
+    char[] hash_disp = read_array(b, pos);
+    char[] hash_slots = read_array(b, pos);
+    if (states.length != edges.length)
+      throw new IOException("Malformed compose data");
+    return new Data(states, edges, hash_disp, hash_slots, compose_entry);
+  }
+
+  /** Write [data] in the format read by [read_data()]. The compose entry
+      state is not written. */
+  static void write_data(Data data, OutputStream out) throws IOException
+  {
+    out.write(new byte[]{ 'U', 'K', 'C', 'D', 1 });
+    write_array(data.states, out);
+    write_array(data.edges, out);
+    write_array(data.hash_disp, out);
+    write_array(data.hash_slots, out);
+  }
+
+  static void write_array(char[] ar, OutputStream out) throws IOException
+  {
+    write_varint(ar.length, out);
+    for (char c : ar)
+      write_varint(c, out);
+  }
+
+  static void write_varint(int v, OutputStream out) throws IOException
+  {
+    while (v >= 0x80)
+    {
+      out.write((v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+    out.write(v);
+  }
+
+  /** [pos] is updated to the end of the array. */
+  static char[] read_array(byte[] b, int[] pos) throws IOException
+  {
+    char[] ar = new char[read_varint(b, pos)];
+    for (int i = 0; i < ar.length; i++)
+      ar[i] = (char)read_varint(b, pos);
+    return ar;
+  }
+
+  static int read_varint(byte[] b, int[] pos) throws IOException
+  {
+    int p = pos[0];
+    int v = 0;
+    int shift = 0;
+    while (true)
+    {
+      if (p >= b.length || shift > 28)
+        throw new IOException("Truncated compose data");
+      int x = b[p++];
+      v |= (x & 0x7F) << shift;
+      if ((x & 0x80) == 0)
+        break;
+      shift += 7;
+    }
+    pos[0] = p;
+    return v;
+  }
+
   /** The state machine is comprised of two arrays.
 
       The [states] array represents the different states and the associated
@@ -82,5 +451,12 @@ public final class ComposeKey
         occupied by the state [s], including the header cell.
       - If [states[s]] is a transition, [edges[s]] is the index of the state to
         jump into.
-      - If [states[s]] is a part of a final state, [edges[s]] is not used. */
+      - If [states[s]] is a part of a final state, [edges[s]] is not used.
+
+      Transitions are found in constant time using a perfect hash table built
+      with the hash and displace method. The key [(s << 16) | c] is hashed
+      with seed [0] into a bucket of [hash_disp], which gives the seed used to
+      hash the key into [hash_slots]. A slot contains the index of the
+      transition in [states], or [0] if empty. The transition must be checked
+      as keys that are not part of the table can land on any slot. */
 }
@@ -6,6 +6,7 @@ import android.content.res.Resources;
 import android.util.DisplayMetrics;
 import android.util.TypedValue;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import juloo.keyboard2.prefs.CustomExtraKeysPreference;
@@ -71,12 +72,16 @@ public final class Config
   public int circle_sensitivity;
   public boolean clipboard_history_enabled;
   public int clipboard_history_duration;
+  /** Compose sequences of the user, in Xorg's Compose format. */
+  public String custom_compose;
 
   // Dynamically set
   /** Configuration options implied by the connected editor. */
   public EditorConfig editor_config;
   public boolean shouldOfferVoiceTyping;
   public ExtraKeys extra_keys_subtype;
+  /** Not modified in place, replaced only when the preferences change. See
+      [keep_if_equal()]. */
   public Map<KeyValue, KeyboardData.PreferredPos> extra_keys_param;
   public Map<KeyValue, KeyboardData.PreferredPos> extra_keys_custom;
 
@@ -106,6 +111,18 @@ public final class Config
     handler = h;
   }
 
+  /** Configuration that is not backed by the preferences. Used in tests. */
+  Config(IKeyEventHandler h)
+  {
+    _prefs = null;
+    editor_config = new EditorConfig();
+    marginTop = 0.f;
+    keyPadding = 0.f;
+    labelTextSize = 0.33f;
+    sublabelTextSize = 0.22f;
+    handler = h;
+  }
+
   /*
    ** Reload prefs
    */
@@ -172,14 +189,17 @@ public final class Config
     theme = getThemeId(res, _prefs.getString("theme", ""));
     autocapitalisation = _prefs.getBoolean("autocapitalisation", true);
     switch_input_immediate = _prefs.getBoolean("switch_input_immediate", false);
-    extra_keys_param = ExtraKeysPreference.get_extra_keys(_prefs);
-    extra_keys_custom = CustomExtraKeysPreference.get(_prefs);
+    extra_keys_param = keep_if_equal(extra_keys_param,
+        ExtraKeysPreference.get_extra_keys(_prefs));
+    extra_keys_custom = keep_if_equal(extra_keys_custom,
+        CustomExtraKeysPreference.get(_prefs));
     selected_number_layout = NumberLayout.of_string(_prefs.getString("number_entry_layout", "pin"));
     current_layout_narrow = _prefs.getInt("current_layout_portrait", 0);
     current_layout_wide = _prefs.getInt("current_layout_landscape", 0);
     circle_sensitivity = Integer.valueOf(_prefs.getString("circle_sensitivity", "2"));
     clipboard_history_enabled = _prefs.getBoolean("clipboard_history_enabled", false);
     clipboard_history_duration = Integer.parseInt(_prefs.getString("clipboard_history_duration", "5"));
+    custom_compose = _prefs.getString("custom_compose", "");
 
     float screen_width_dp = dm.widthPixels / dm.density;
     wide_screen = screen_width_dp >= WIDE_DEVICE_THRESHOLD;
@@ -266,6 +286,16 @@ public final class Config
     }
   }
 
+  /** An unmodifiable view of [m], or [prev] if it is equal to [m]. The
+      config is refreshed every time the keyboard is shown and
+      [LayoutModifier] compares these maps by identity. */
+  static <K, V> Map<K, V> keep_if_equal(Map<K, V> prev, Map<K, V> m)
+  {
+    if (prev != null && prev.equals(m))
+      return prev;
+    return Collections.unmodifiableMap(m);
+  }
+
   private static Config _globalConfig = null;
 
   public static void initGlobalConfig(SharedPreferences prefs, Resources res,
@@ -28,7 +28,8 @@ public class Emoji
   private final static List<List<Emoji>> _groups = new ArrayList<>();
   private final static HashMap<String, Emoji> _stringMap = new HashMap<>();
 
-  public static void init(Resources res)
+  /** Might be called from [Keyboard2.prewarm_async()]'s thread. */
+  public static synchronized void init(Resources res)
   {
     if (!_all.isEmpty())
       return;
@@ -8,10 +8,17 @@ public final class Gesture
 
   State state;
 
-  public Gesture(int starting_direction)
+  /** See [Config.circle_sensitivity]. */
+  int circle_sensitivity;
+
+  public Gesture() {}
+
+  /** Start a new gesture. Instances are reused by [Pointers]. */
+  public void start(int starting_direction, int circle_sensitivity_)
   {
     current_dir = starting_direction;
     state = State.Swiped;
+    circle_sensitivity = circle_sensitivity_;
   }
 
   enum State
@@ -86,7 +93,7 @@ public final class Gesture
     switch (state)
     {
       case Swiped:
-        if (Math.abs(d) < Config.globalConfig().circle_sensitivity)
+        if (Math.abs(d) < circle_sensitivity)
           return false;
         // Start a rotation
         state = (clockwise) ?
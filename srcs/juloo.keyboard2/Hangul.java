@@ -0,0 +1,176 @@
+package juloo.keyboard2;
+
+/** Composition and decomposition of Hangul syllables. Jamos are the
+    compatibility jamos from [U+3131] to [U+3163], as found on the layouts.
+    Every operation is a lookup in the tables below. */
+public final class Hangul
+{
+  public static final int SYLLABLE_FIRST = 0xAC00;
+  public static final int N_INITIALS = 19;
+  public static final int N_MEDIALS = 21;
+  public static final int N_FINALS = 28; // Including the absence of final
+  public static final int N_SYLLABLES = N_INITIALS * N_MEDIALS * N_FINALS;
+
+  static final int JAMO_FIRST = 0x3131; // ㄱ
+  static final int VOWEL_FIRST = 0x314F; // ㅏ
+  static final int N_JAMOS = 0x3163 - JAMO_FIRST + 1;
+
+  /** Index of a syllable's initial, medial or final, or [-1]. */
+  public static int initial_index(char c)
+  {
+    int j = c - JAMO_FIRST;
+    return (j >= 0 && j < N_JAMOS) ? INITIAL_OF_JAMO[j] : -1;
+  }
+
+  public static int medial_index(char c)
+  {
+    int j = c - VOWEL_FIRST;
+    return (j >= 0 && j < N_MEDIALS) ? j : -1;
+  }
+
+  public static int final_index(char c)
+  {
+    int j = c - JAMO_FIRST;
+    return (j >= 0 && j < N_JAMOS) ? FINAL_OF_JAMO[j] : -1;
+  }
+
+  public static char syllable(int initial, int medial, int final_)
+  {
+    return (char)(SYLLABLE_FIRST + (initial * N_MEDIALS + medial) * N_FINALS
+        + final_);
+  }
+
+  public static boolean is_syllable(char c)
+  {
+    return c >= SYLLABLE_FIRST && c < SYLLABLE_FIRST + N_SYLLABLES;
+  }
+
+  /** [s] must be a syllable, see [is_syllable()]. */
+  public static int initial_of(char s)
+  {
+    return (s - SYLLABLE_FIRST) / (N_MEDIALS * N_FINALS);
+  }
+
+  public static int medial_of(char s)
+  {
+    return (s - SYLLABLE_FIRST) / N_FINALS % N_MEDIALS;
+  }
+
+  public static int final_of(char s)
+  {
+    return (s - SYLLABLE_FIRST) % N_FINALS;
+  }
+
+  /** The jamo of an initial, medial or final index. */
+  public static char initial_jamo(int initial)
+  {
+    return JAMO_OF_INITIAL.charAt(initial);
+  }
+
+  public static char medial_jamo(int medial)
+  {
+    return (char)(VOWEL_FIRST + medial);
+  }
+
+  /** Returns [0] if [final_] is [0]. */
+  public static char final_jamo(int final_)
+  {
+    return JAMO_OF_FINAL.charAt(final_);
+  }
+
+  /** The compound medial made of the medial [medial] followed by the vowel
+      [c] (eg. [ㅗ] and [ㅏ] make [ㅘ]), or [-1]. */
+  public static int combine_medial(int medial, char c)
+  {
+    int v = medial_index(c);
+    return (v < 0) ? -1 : COMBINE_MEDIAL[medial * N_MEDIALS + v];
+  }
+
+  /** The compound final made of the final [final_] followed by the consonant
+      [c] (eg. [ㄹ] and [ㄱ] make [ㄺ]), or [-1]. */
+  public static int combine_final(int final_, char c)
+  {
+    int j = c - JAMO_FIRST;
+    if (j < 0 || j >= N_JAMOS)
+      return -1;
+    return COMBINE_FINAL[final_ * N_JAMOS + j];
+  }
+
+  /** The syllable [s] with the consonant [c] merged into its final to make a
+      compound final (eg. [달] and [ㄱ] make [닭]), or [0]. [backspace()]
+      undoes it. */
+  public static char add_final(char s, char c)
+  {
+    if (!is_syllable(s))
+      return 0;
+    int t = final_of(s);
+    int compound = combine_final(t, c);
+    return (compound < 0) ? 0 : (char)(s - t + compound);
+  }
+
+  /** The text that remains after removing the last jamo typed in [s]: the
+      second half of a compound final or medial, then the final, then the
+      medial. For example, [갃] gives [각], then [가], then [ㄱ]. Returns [0]
+      if [s] is not a syllable. */
+  public static char backspace(char s)
+  {
+    if (!is_syllable(s))
+      return 0;
+    int t = final_of(s);
+    if (t != 0)
+      return (char)(s - t + FINAL_PARENT[t]);
+    int v = medial_of(s);
+    int parent = MEDIAL_PARENT[v];
+    if (parent >= 0)
+      return syllable(initial_of(s), parent, 0);
+    return initial_jamo(initial_of(s));
+  }
+
+  /** Indexed by [c - JAMO_FIRST]. */
+  static final byte[] INITIAL_OF_JAMO = new byte[N_JAMOS];
+  static final byte[] FINAL_OF_JAMO = new byte[N_JAMOS];
+  /** Indexed by [final * N_JAMOS + c - JAMO_FIRST]. */
+  static final byte[] COMBINE_FINAL = new byte[N_FINALS * N_JAMOS];
+  /** Indexed by [medial * N_MEDIALS + vowel]. */
+  static final byte[] COMBINE_MEDIAL = new byte[N_MEDIALS * N_MEDIALS];
+  /** The first half of compound finals, [0] for the other finals. */
+  static final byte[] FINAL_PARENT = new byte[N_FINALS];
+  /** The first half of compound medials, [-1] for the other medials. */
+  static final byte[] MEDIAL_PARENT = new byte[N_MEDIALS];
+
+  static final String JAMO_OF_INITIAL = "ㄱㄲㄴㄷㄸㄹㅁㅂㅃㅅㅆㅇㅈㅉㅊㅋㅌㅍㅎ";
+  static final String JAMO_OF_FINAL = "\0ㄱㄲㄳㄴㄵㄶㄷㄹㄺㄻㄼㄽㄾㄿㅀㅁㅂㅄㅅㅆㅇㅈㅊㅋㅌㅍㅎ";
+
+  /** Compound finals and medials followed by their two halves. */
+  static final String COMPOUND_FINALS = "ㄳㄱㅅㄵㄴㅈㄶㄴㅎㄺㄹㄱㄻㄹㅁㄼㄹㅂㄽㄹㅅㄾㄹㅌㄿㄹㅍㅀㄹㅎㅄㅂㅅ";
+  static final String COMPOUND_MEDIALS = "ㅘㅗㅏㅙㅗㅐㅚㅗㅣㅝㅜㅓㅞㅜㅔㅟㅜㅣㅢㅡㅣ";
+
+  static
+  {
+    java.util.Arrays.fill(INITIAL_OF_JAMO, (byte)-1);
+    java.util.Arrays.fill(FINAL_OF_JAMO, (byte)-1);
+    java.util.Arrays.fill(COMBINE_FINAL, (byte)-1);
+    java.util.Arrays.fill(COMBINE_MEDIAL, (byte)-1);
+    java.util.Arrays.fill(MEDIAL_PARENT, (byte)-1);
+    for (int i = 0; i < N_INITIALS; i++)
+      INITIAL_OF_JAMO[JAMO_OF_INITIAL.charAt(i) - JAMO_FIRST] = (byte)i;
+    for (int t = 1; t < N_FINALS; t++)
+      FINAL_OF_JAMO[JAMO_OF_FINAL.charAt(t) - JAMO_FIRST] = (byte)t;
+    for (int i = 0; i < COMPOUND_FINALS.length(); i += 3)
+    {
+      int t = final_index(COMPOUND_FINALS.charAt(i));
+      int first = final_index(COMPOUND_FINALS.charAt(i + 1));
+      int second = COMPOUND_FINALS.charAt(i + 2) - JAMO_FIRST;
+      COMBINE_FINAL[first * N_JAMOS + second] = (byte)t;
+      FINAL_PARENT[t] = (byte)first;
+    }
+    for (int i = 0; i < COMPOUND_MEDIALS.length(); i += 3)
+    {
+      int v = medial_index(COMPOUND_MEDIALS.charAt(i));
+      int first = medial_index(COMPOUND_MEDIALS.charAt(i + 1));
+      int second = medial_index(COMPOUND_MEDIALS.charAt(i + 2));
+      COMBINE_MEDIAL[first * N_MEDIALS + second] = (byte)v;
+      MEDIAL_PARENT[v] = (byte)first;
+    }
+  }
+}
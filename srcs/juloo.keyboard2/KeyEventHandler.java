@@ -26,6 +26,12 @@ public final class KeyEventHandler
   /** Whether to force sending arrow keys to move the cursor when
       [setSelection] could be used instead. */
   boolean _move_cursor_force_fallback = false;
+  /** The Hangul syllable that was just typed or [0]. The next backspace
+      removes its last jamo instead of the whole syllable. */
+  char _hangul_last = 0;
+  /** The syllable before the cursor before a consonant was merged into its
+      final, or [0]. See [handle_hangul_final()]. */
+  char _hangul_unmerged = 0;
 
   public KeyEventHandler(IReceiver recv)
   {
@@ -41,6 +47,8 @@ public final class KeyEventHandler
     _autocap.started(conf, _recv.getCurrentInputConnection());
     _move_cursor_force_fallback =
       conf.editor_config.should_move_cursor_force_fallback;
+    _hangul_last = 0;
+    _hangul_unmerged = 0;
   }
 
   /** Selection has been updated. */
@@ -56,6 +64,7 @@ public final class KeyEventHandler
   {
     if (key == null)
       return;
+    handle_hangul_final(key, isSwipe);
     // Stop auto capitalisation when pressing some keys
     switch (key.getKind())
     {
@@ -87,14 +96,26 @@ public final class KeyEventHandler
   {
     if (key == null)
       return;
+    Logs.debug_first_key();
     Pointers.Modifiers old_mods = _mods;
     update_meta_state(mods);
+    char hangul_last = _hangul_last;
+    _hangul_last = 0;
     switch (key.getKind())
     {
-      case Char: send_text(String.valueOf(key.getChar())); break;
+      case Char:
+        send_text(String.valueOf(key.getChar()));
+        if (Hangul.is_syllable(key.getChar()))
+          _hangul_last = key.getChar();
+        break;
       case String: send_text(key.getString()); break;
       case Event: _recv.handle_event_key(key.getEvent()); break;
-      case Keyevent: send_key_down_up(key.getKeyevent()); break;
+      case Keyevent:
+        if (key.getKeyevent() == KeyEvent.KEYCODE_DEL && hangul_last != 0
+            && _meta_state == 0 && backspace_hangul(hangul_last))
+          break;
+        send_key_down_up(key.getKeyevent());
+        break;
       case Modifier: break;
       case Editing: handle_editing_key(key.getEditing()); break;
       case Compose_pending: _recv.set_compose_pending(true); break;
@@ -108,6 +129,10 @@ public final class KeyEventHandler
   public void mods_changed(Pointers.Modifiers mods)
   {
     update_meta_state(mods);
+    // The consonant is no longer pressed nor latched and no other key was
+    // pressed, the pointer was cancelled.
+    if (_hangul_unmerged != 0 && !has_hangul_initial(mods))
+      undo_hangul_final();
   }
 
   @Override
@@ -210,10 +235,84 @@ public final class KeyEventHandler
     InputConnection conn = _recv.getCurrentInputConnection();
     if (conn == null)
       return;
+    _hangul_last = 0;
     conn.commitText(text, 1);
     _autocap.typed(text);
   }
 
+  /** Replace the syllable [s] before the cursor with [Hangul.backspace(s)].
+      Returns [false] if [s] is no longer before the cursor. */
+  boolean backspace_hangul(char s)
+  {
+    return replace_hangul(s, Hangul.backspace(s));
+  }
+
+  /** Merge a consonant into the final of the syllable that was just typed
+      when it is pressed, see [Hangul.add_final()]. The consonant is still
+      latched as an initial. The merge is undone when the next key down
+      combines with it into a new syllable, types it in letter form or is a
+      swipe to an other value, and when the consonant's pointer is cancelled,
+      see [mods_changed()]. Any other key keeps the consonant as the final,
+      for example "닭" then space types "닭 ".
+      The merge is not undone if the text before the cursor changed in the
+      meantime, for example if the cursor was moved before typing the vowel,
+      see [replace_hangul()]. */
+  void handle_hangul_final(KeyValue key, boolean isSwipe)
+  {
+    if (isSwipe
+        || key.getKind() == KeyValue.Kind.Hangul_medial
+        // The consonant in letter form, see [KeyModifier.modify()].
+        || (key.getKind() == KeyValue.Kind.Char
+          && key.hasFlagsAny(KeyValue.FLAG_GREYED)
+          && Hangul.add_final(_hangul_unmerged, key.getChar()) == _hangul_last))
+      undo_hangul_final();
+    _hangul_unmerged = 0;
+    if (key.getKind() != KeyValue.Kind.Hangul_initial
+        || key.hasFlagsAny(KeyValue.FLAG_GREYED) || _hangul_last == 0)
+      return;
+    char prev = _hangul_last;
+    char merged = Hangul.add_final(prev, key.getString().charAt(0));
+    if (merged != 0 && replace_hangul(prev, merged))
+      _hangul_unmerged = prev;
+  }
+
+  /** Split the final merged by [handle_hangul_final()], if any. */
+  void undo_hangul_final()
+  {
+    char unmerged = _hangul_unmerged;
+    _hangul_unmerged = 0;
+    if (unmerged != 0)
+      replace_hangul(_hangul_last, unmerged);
+  }
+
+  static boolean has_hangul_initial(Pointers.Modifiers mods)
+  {
+    for (int i = 0; i < mods.size(); i++)
+      if (mods.get(i).getKind() == KeyValue.Kind.Hangul_initial)
+        return true;
+    return false;
+  }
+
+  /** Replace the syllable [s] before the cursor with [r]. Returns [false] if
+      [s] is no longer before the cursor. */
+  boolean replace_hangul(char s, char r)
+  {
+    InputConnection conn = _recv.getCurrentInputConnection();
+    if (conn == null)
+      return false;
+    CharSequence sel = conn.getSelectedText(0);
+    CharSequence before = conn.getTextBeforeCursor(1, 0);
+    if ((sel != null && sel.length() > 0) || before == null
+        || before.length() != 1 || before.charAt(0) != s)
+      return false;
+    conn.beginBatchEdit();
+    conn.deleteSurroundingText(1, 0);
+    conn.commitText(String.valueOf(r), 1);
+    conn.endBatchEdit();
+    _hangul_last = Hangul.is_syllable(r) ? r : 0;
+    return true;
+  }
+
   /** See {!InputConnection.performContextMenuAction}. */
   void send_context_menu_action(int id)
   {
@@ -0,0 +1,168 @@
+package juloo.keyboard2;
+
+import java.util.IdentityHashMap;
+
+/** Find the row and the key at a position in constant time. Built from the
+    geometry of a layout, see [Keyboard2View.onMeasure()].
+    The space left by the [shift] of a row is part of the row. The space left
+    by the [shift] of a key doesn't belong to any key. */
+public final class KeyHitIndex
+{
+  final KeyboardData _kw;
+  final Intervals _rows;
+  /** Cells of the keys of each rows. A cell contains the key and the space
+      left by its shift. */
+  final Intervals[] _cells;
+  /** Left boundary of each keys, excluding the shift. */
+  final float[][] _key_lefts;
+  /** Top boundary of each rows, excluding the shift. */
+  final float[] _row_tops;
+  /** Position of each keys, see [position()]. */
+  final IdentityHashMap<KeyboardData.Key, Integer> _positions =
+    new IdentityHashMap<KeyboardData.Key, Integer>();
+
+  /** [top] and [left] are the position of the first row and of the first key
+      of each rows. */
+  public KeyHitIndex(KeyboardData kw, float top, float left, float row_height,
+      float key_width)
+  {
+    _kw = kw;
+    int n_rows = kw.rows.size();
+    float[] row_bottoms = new float[n_rows];
+    _row_tops = new float[n_rows];
+    _cells = new Intervals[n_rows];
+    _key_lefts = new float[n_rows][];
+    float y = top;
+    for (int r = 0; r < n_rows; r++)
+    {
+      KeyboardData.Row row = kw.rows.get(r);
+      y += row.shift * row_height;
+      _row_tops[r] = y;
+      y += row.height * row_height;
+      row_bottoms[r] = y;
+      int n_keys = row.keys.size();
+      float[] rights = new float[n_keys];
+      float[] lefts = new float[n_keys];
+      float x = left;
+      for (int k = 0; k < n_keys; k++)
+      {
+        KeyboardData.Key key = row.keys.get(k);
+        float xLeft = x + key.shift * key_width;
+        float xRight = xLeft + key.width * key_width;
+        lefts[k] = xLeft;
+        rights[k] = xRight;
+        // The first occurrence wins if a key appears twice.
+        if (!_positions.containsKey(key))
+          _positions.put(key, (r << 16) | k);
+        x = xRight;
+      }
+      _cells[r] = new Intervals(left, rights);
+      _key_lefts[r] = lefts;
+    }
+    _rows = new Intervals(top, row_bottoms);
+  }
+
+  /** Index of the row at [y] or [-1]. */
+  public int row_at(float y)
+  {
+    return _rows.find(y);
+  }
+
+  /** Index of the key at [x] in the row [row] or [-1]. */
+  public int key_at(int row, float x)
+  {
+    int k = _cells[row].find(x);
+    if (k < 0 || x < _key_lefts[row][k])
+      return -1;
+    return k;
+  }
+
+  /** The key at a position or [null]. */
+  public KeyboardData.Key get_key(float x, float y)
+  {
+    int r = row_at(y);
+    if (r < 0)
+      return null;
+    int k = key_at(r, x);
+    if (k < 0)
+      return null;
+    return _kw.rows.get(r).keys.get(k);
+  }
+
+  /** The row of a key in the upper 16 bits and its index in the lower 16
+      bits, or [-1] if the key is not on the layout. */
+  public int position(KeyboardData.Key key)
+  {
+    Integer p = _positions.get(key);
+    return (p == null) ? -1 : p;
+  }
+
+  public float row_top(int row) { return _row_tops[row]; }
+  public float row_bottom(int row) { return _rows.end(row); }
+  public float key_left(int row, int key) { return _key_lefts[row][key]; }
+  public float key_right(int row, int key) { return _cells[row].end(key); }
+
+  /** Contiguous intervals starting at [origin]. A lookup table maps
+      equal-sized buckets to the first interval they intersect. Buckets are
+      not larger than the smallest interval, a lookup tests at most two
+      intervals. */
+  static final class Intervals
+  {
+    /** The number of buckets is limited for layouts with very small keys or
+        rows. Lookups are slower in that case but remain correct. */
+    static final int MAX_BUCKETS_PER_INTERVAL = 4;
+
+    final float _origin;
+    final float[] _ends;
+    final float _bucket_size;
+    final int[] _buckets;
+
+    /** [ends] is the end of each intervals, in increasing order. */
+    Intervals(float origin, float[] ends)
+    {
+      _origin = origin;
+      _ends = ends;
+      float min_size = Float.MAX_VALUE;
+      float prev = origin;
+      for (float e : ends)
+      {
+        if (e > prev)
+          min_size = Math.min(min_size, e - prev);
+        prev = e;
+      }
+      float total = prev - origin;
+      int n_buckets = 1;
+      if (total > 0.f && min_size < Float.MAX_VALUE)
+        n_buckets = (int)Math.min(Math.ceil(total / min_size),
+            Math.max(1, ends.length * MAX_BUCKETS_PER_INTERVAL));
+      _bucket_size = (total > 0.f) ? total / n_buckets : 1.f;
+      _buckets = new int[n_buckets];
+      int i = 0;
+      for (int b = 0; b < n_buckets; b++)
+      {
+        float start = origin + b * _bucket_size;
+        while (i < ends.length - 1 && ends[i] <= start)
+          i++;
+        _buckets[b] = i;
+      }
+    }
+
+    /** Index of the interval containing [v] or [-1]. */
+    int find(float v)
+    {
+      int last = _ends.length - 1;
+      if (v < _origin || last < 0 || v >= _ends[last])
+        return -1;
+      int b = (int)((v - _origin) / _bucket_size);
+      int i = _buckets[Math.min(b, _buckets.length - 1)];
+      // Correct rounding errors in the bucket computation.
+      while (v >= _ends[i])
+        i++;
+      while (i > 0 && v < _ends[i - 1])
+        i--;
+      return i;
+    }
+
+    float end(int i) { return _ends[i]; }
+  }
+}
@@ -2,6 +2,7 @@ package juloo.keyboard2;
 
 import android.view.KeyCharacterMap;
 import android.view.KeyEvent;
+import java.util.Arrays;
 import java.util.HashMap;
 
 public final class KeyModifier
@@ -11,7 +12,25 @@ public final class KeyModifier
   private static Modmap _modmap = null;
   public static void set_modmap(Modmap mm)
   {
+    if (mm != _modmap)
+      clear_memo();
     _modmap = mm;
+    _table = null;
+  }
+
+  /** Precomputed results for the keys of the current layout. Might be
+      [null]. */
+  private static ModifierTable _table = null;
+
+  /** Set the modmap of the layout and its modifier table, which is built the
+      first time the layout is set and after the compose data changed. */
+  public static void set_layout(KeyboardData kw)
+  {
+    set_modmap(kw.modmap);
+    ModifierTable t = kw.modifier_table;
+    if (t == null || t.compose_data != ComposeKey.data())
+      kw.modifier_table = new ModifierTable(kw);
+    _table = kw.modifier_table;
   }
 
   /** Modify a key according to modifiers. */
@@ -47,7 +66,81 @@ public final class KeyModifier
     return k;
   }
 
+  /** Results are looked up in the table of the current layout first, then
+      memoized, see [_memo]. */
   public static KeyValue modify(KeyValue k, KeyValue.Modifier mod)
+  {
+    ModifierTable t = _table;
+    if (t != null && t.contains(k, mod))
+      return t.modify(k, mod);
+    int slot = memo_slot(k, mod);
+    Memo m = _memo[slot];
+    if (m != null && m.mod == mod && m.key.equals(k))
+    {
+      memo_hits++;
+      return m.result;
+    }
+    memo_misses++;
+    KeyValue r = modify_uncached(k, mod);
+    _memo[slot] = new Memo(k, mod, r);
+    return r;
+  }
+
+  /** Whether the result of [modify(k, mod)] is memoized. Used in tests. */
+  static boolean is_memoized(KeyValue k, KeyValue.Modifier mod)
+  {
+    Memo m = _memo[memo_slot(k, mod)];
+    return m != null && m.mod == mod && m.key.equals(k);
+  }
+
+  /** Results of [modify(KeyValue, KeyValue.Modifier)], indexed by a hash of
+      the key and the modifier. Entries are overwritten on collision. Entries
+      are immutable, the table can be read and written from several
+      threads. */
+  static final int MEMO_BITS = 12;
+
+  /** Number of lookups in [_memo] that found or missed the result. Not
+      synchronized, only meant to measure the hit rate. */
+  static int memo_hits = 0;
+  static int memo_misses = 0;
+  private static final Memo[] _memo = new Memo[1 << MEMO_BITS];
+
+  static int memo_slot(KeyValue k, KeyValue.Modifier mod)
+  {
+    int h = k.hashCode() * 31 + mod.ordinal();
+    return (h * 0x9E3779B9) >>> (32 - MEMO_BITS);
+  }
+
+  static final class Memo
+  {
+    final KeyValue key;
+    final KeyValue.Modifier mod;
+    final KeyValue result;
+
+    Memo(KeyValue k, KeyValue.Modifier m, KeyValue r)
+    {
+      key = k;
+      mod = m;
+      result = r;
+    }
+  }
+
+  /** The memoized results depend on [_modmap]. */
+  static void clear_memo()
+  {
+    Arrays.fill(_memo, null);
+  }
+
+  /** The memoized results and the modifier tables depend on the compose
+      data. Called by [ComposeKey.set_data()], [set_layout()] must be called
+      again to use a modifier table. */
+  static void compose_data_changed()
+  {
+    clear_memo();
+    _table = null;
+  }
+
+  static KeyValue modify_uncached(KeyValue k, KeyValue.Modifier mod)
   {
     switch (mod)
     {
@@ -130,7 +223,9 @@ public final class KeyModifier
     {
       case Char:
       case String:
-        KeyValue res = ComposeKey.apply(state, kv);
+        KeyValue res = (kv.getKind() == KeyValue.Kind.Char)
+          ? ComposeKey.lookahead(state).apply(kv.getChar())
+          : ComposeKey.apply(state, kv);
         // Grey-out characters not part of any sequence.
         if (res == null)
           return kv.withFlags(kv.getFlags() | KeyValue.FLAG_GREYED);
@@ -446,34 +541,10 @@ public final class KeyModifier
   private static KeyValue combine_hangul_initial(KeyValue kv, char medial,
       int precomposed)
   {
-    int medial_idx;
-    switch (medial)
-    {
-      // Vowels
-      case 'ㅏ': medial_idx = 0; break;
-      case 'ㅐ': medial_idx = 1; break;
-      case 'ㅑ': medial_idx = 2; break;
-      case 'ㅒ': medial_idx = 3; break;
-      case 'ㅓ': medial_idx = 4; break;
-      case 'ㅔ': medial_idx = 5; break;
-      case 'ㅕ': medial_idx = 6; break;
-      case 'ㅖ': medial_idx = 7; break;
-      case 'ㅗ': medial_idx = 8; break;
-      case 'ㅘ': medial_idx = 9; break;
-      case 'ㅙ': medial_idx = 10; break;
-      case 'ㅚ': medial_idx = 11; break;
-      case 'ㅛ': medial_idx = 12; break;
-      case 'ㅜ': medial_idx = 13; break;
-      case 'ㅝ': medial_idx = 14; break;
-      case 'ㅞ': medial_idx = 15; break;
-      case 'ㅟ': medial_idx = 16; break;
-      case 'ㅠ': medial_idx = 17; break;
-      case 'ㅡ': medial_idx = 18; break;
-      case 'ㅢ': medial_idx = 19; break;
-      case 'ㅣ': medial_idx = 20; break;
-      // Grey-out uncomposable characters
-      default: return kv.withFlags(kv.getFlags() | KeyValue.FLAG_GREYED);
-    }
+    int medial_idx = Hangul.medial_index(medial);
+    // Grey-out uncomposable characters
+    if (medial_idx < 0)
+      return kv.withFlags(kv.getFlags() | KeyValue.FLAG_GREYED);
     return KeyValue.makeHangulMedial(precomposed, medial_idx);
   }
 
@@ -495,40 +566,16 @@ public final class KeyModifier
   private static KeyValue combine_hangul_medial(KeyValue kv, char c,
       int precomposed)
   {
-    int final_idx;
-    switch (c)
-    {
-      case ' ': final_idx = 0; break;
-      case 'ㄱ': final_idx = 1; break;
-      case 'ㄲ': final_idx = 2; break;
-      case 'ㄳ': final_idx = 3; break;
-      case 'ㄴ': final_idx = 4; break;
-      case 'ㄵ': final_idx = 5; break;
-      case 'ㄶ': final_idx = 6; break;
-      case 'ㄷ': final_idx = 7; break;
-      case 'ㄹ': final_idx = 8; break;
-      case 'ㄺ': final_idx = 9; break;
-      case 'ㄻ': final_idx = 10; break;
-      case 'ㄼ': final_idx = 11; break;
-      case 'ㄽ': final_idx = 12; break;
-      case 'ㄾ': final_idx = 13; break;
-      case 'ㄿ': final_idx = 14; break;
-      case 'ㅀ': final_idx = 15; break;
-      case 'ㅁ': final_idx = 16; break;
-      case 'ㅂ': final_idx = 17; break;
-      case 'ㅄ': final_idx = 18; break;
-      case 'ㅅ': final_idx = 19; break;
-      case 'ㅆ': final_idx = 20; break;
-      case 'ㅇ': final_idx = 21; break;
-      case 'ㅈ': final_idx = 22; break;
-      case 'ㅊ': final_idx = 23; break;
-      case 'ㅋ': final_idx = 24; break;
-      case 'ㅌ': final_idx = 25; break;
-      case 'ㅍ': final_idx = 26; break;
-      case 'ㅎ': final_idx = 27; break;
-      // Grey-out uncomposable characters
-      default: return kv.withFlags(kv.getFlags() | KeyValue.FLAG_GREYED);
-    }
-    return KeyValue.makeHangulFinal(precomposed, final_idx);
+    int final_idx = (c == ' ') ? 0 : Hangul.final_index(c);
+    if (final_idx >= 0)
+      return KeyValue.makeHangulFinal(precomposed, final_idx);
+    // A second vowel makes a compound medial.
+    int medial = Hangul.medial_of((char)precomposed);
+    int compound = Hangul.combine_medial(medial, c);
+    if (compound >= 0)
+      return KeyValue.makeHangulMedial(precomposed - medial * Hangul.N_FINALS,
+          compound);
+    // Grey-out uncomposable characters
+    return kv.withFlags(kv.getFlags() | KeyValue.FLAG_GREYED);
   }
 }
@@ -0,0 +1,140 @@
+package juloo.keyboard2;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/** Deadlines of the long press and key repeat timers of every pointers.
+    Timers are identified by a slot number, scheduling and cancelling a timer
+    is done in constant time. A single callback is posted to the [Clock], for
+    the earliest deadline. */
+public final class KeyTimers implements Runnable
+{
+  /** Not scheduled. */
+  static final long NONE = Long.MAX_VALUE;
+
+  final Clock _clock;
+  final Callback _callback;
+  /** Deadline of each slots, [NONE] if not scheduled. */
+  final long[] _deadlines;
+  /** Number of slots that are scheduled. */
+  int _n_scheduled = 0;
+  /** Time at which [this] is posted to [_clock], [NONE] if not posted. */
+  long _posted_at = NONE;
+  /** The callback is posted after calling the expired timers. */
+  boolean _firing = false;
+
+  public KeyTimers(Clock clock, Callback callback, int n_slots)
+  {
+    _clock = clock;
+    _callback = callback;
+    _deadlines = new long[n_slots];
+    for (int i = 0; i < n_slots; i++)
+      _deadlines[i] = NONE;
+  }
+
+  /** Call [Callback.on_timer(slot)] in [delay] milliseconds, replacing the
+      previous deadline of [slot]. */
+  public void schedule(int slot, long delay)
+  {
+    long t = _clock.now() + delay;
+    if (_deadlines[slot] == NONE)
+      _n_scheduled++;
+    _deadlines[slot] = t;
+    if (!_firing && t < _posted_at)
+      post(t);
+  }
+
+  /** The pending callback is kept if other timers are scheduled, it will
+      find the next deadline when it runs. */
+  public void cancel(int slot)
+  {
+    if (_deadlines[slot] == NONE)
+      return;
+    _deadlines[slot] = NONE;
+    if (--_n_scheduled == 0 && !_firing && _posted_at != NONE)
+    {
+      _clock.cancel(this);
+      _posted_at = NONE;
+    }
+  }
+
+  public boolean is_scheduled(int slot)
+  {
+    return _deadlines[slot] != NONE;
+  }
+
+  /** Call the expired timers. Timers that are scheduled by the callback are
+      not called before the next run. */
+  @Override
+  public void run()
+  {
+    _posted_at = NONE;
+    _firing = true;
+    long now = _clock.now();
+    for (int i = 0; i < _deadlines.length; i++)
+    {
+      if (_deadlines[i] > now)
+        continue;
+      _deadlines[i] = NONE;
+      _n_scheduled--;
+      _callback.on_timer(i);
+    }
+    _firing = false;
+    if (_n_scheduled > 0)
+    {
+      long next = NONE;
+      for (long d : _deadlines)
+        next = Math.min(next, d);
+      post(next);
+    }
+  }
+
+  void post(long time)
+  {
+    if (_posted_at != NONE)
+      _clock.cancel(this);
+    _posted_at = time;
+    _clock.post_at(this, time);
+  }
+
+  public interface Callback
+  {
+    public void on_timer(int slot);
+  }
+
+  /** Source of time, in milliseconds. Replaced in tests. */
+  public interface Clock
+  {
+    public long now();
+    /** Run [r] once at [time], on the same thread. */
+    public void post_at(Runnable r, long time);
+    public void cancel(Runnable r);
+  }
+
+  /** Run the callbacks on a [Handler], in [SystemClock.uptimeMillis()]
+      time. */
+  public static final class HandlerClock implements Clock
+  {
+    final Handler _handler;
+
+    public HandlerClock(Handler h)
+    {
+      _handler = h;
+    }
+
+    public long now()
+    {
+      return SystemClock.uptimeMillis();
+    }
+
+    public void post_at(Runnable r, long time)
+    {
+      _handler.postAtTime(r, time);
+    }
+
+    public void cancel(Runnable r)
+    {
+      _handler.removeCallbacks(r);
+    }
+  }
+}
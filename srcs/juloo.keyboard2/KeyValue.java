@@ -1,7 +1,10 @@
 package juloo.keyboard2;
 
 import android.view.KeyEvent;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 public final class KeyValue implements Comparable<KeyValue>
 {
@@ -128,6 +131,13 @@ public final class KeyValue implements Comparable<KeyValue>
   private static final int KIND_BITS = (0b1111 << KIND_OFFSET); // 4 bits wide
   private static final int VALUE_BITS = 0b11111111111111111111; // 20 bits wide
 
+  // [values()] allocates a new array every time.
+  private static final Kind[] KINDS = Kind.values();
+  private static final Event[] EVENTS = Event.values();
+  private static final Modifier[] MODIFIERS = Modifier.values();
+  private static final Editing[] EDITINGS = Editing.values();
+  private static final Placeholder[] PLACEHOLDERS = Placeholder.values();
+
   static
   {
     check((FLAGS_BITS & KIND_BITS) == 0); // No overlap with kind
@@ -137,17 +147,24 @@ public final class KeyValue implements Comparable<KeyValue>
     check((((Kind.values().length - 1) << KIND_OFFSET) & ~KIND_BITS) == 0);
   }
 
-  /** [_payload.toString()] is the symbol that is rendered on the keyboard. */
+  /** [_payload.toString()] is the symbol that is rendered on the keyboard.
+      The payloads of interned keys are shared, see [intern()]. */
   private final Comparable _payload;
 
+  /** Precomputed [hashCode()]. */
+  private final int _hash;
+
   /** This field encodes three things: Kind (KIND_BITS), flags (FLAGS_BITS) and
       value (VALUE_BITS).
       The meaning of the value depends on the kind. */
   private final int _code;
 
+  /** See [id()]. Set once when the key is interned. */
+  private int _id = -1;
+
   public Kind getKind()
   {
-    return Kind.values()[(_code & KIND_BITS) >>> KIND_OFFSET];
+    return KINDS[(_code & KIND_BITS) >>> KIND_OFFSET];
   }
 
   public int getFlags()
@@ -182,25 +199,25 @@ public final class KeyValue implements Comparable<KeyValue>
   /** Defined only when [getKind() == Kind.Event]. */
   public Event getEvent()
   {
-    return Event.values()[(_code & VALUE_BITS)];
+    return EVENTS[(_code & VALUE_BITS)];
   }
 
   /** Defined only when [getKind() == Kind.Modifier]. */
   public Modifier getModifier()
   {
-    return Modifier.values()[(_code & VALUE_BITS)];
+    return MODIFIERS[(_code & VALUE_BITS)];
   }
 
   /** Defined only when [getKind() == Kind.Editing]. */
   public Editing getEditing()
   {
-    return Editing.values()[(_code & VALUE_BITS)];
+    return EDITINGS[(_code & VALUE_BITS)];
   }
 
   /** Defined only when [getKind() == Kind.Placeholder]. */
   public Placeholder getPlaceholder()
   {
-    return Placeholder.values()[(_code & VALUE_BITS)];
+    return PLACEHOLDERS[(_code & VALUE_BITS)];
   }
 
   /** Defined only when [getKind() == Kind.Compose_pending]. */
@@ -248,7 +265,7 @@ public final class KeyValue implements Comparable<KeyValue>
 
   public KeyValue withFlags(int f)
   {
-    return new KeyValue(_payload, _code, _code, f);
+    return new KeyValue(_payload, (_code & ~FLAGS_BITS) | (f & FLAGS_BITS));
   }
 
   public KeyValue withSymbol(String symbol)
@@ -291,6 +308,13 @@ public final class KeyValue implements Comparable<KeyValue>
     d = _code - snd._code;
     if (d != 0)
       return d;
+    // Two different interned keys can't have the same [_code] and payload.
+    // The order still depends on the payload to stay consistent with keys
+    // that are not interned.
+    if (_id >= 0 && _id == snd._id)
+      return 0;
+    if (_payload == snd._payload)
+      return 0;
     // Calls [compareTo] assuming that if [_code] matches, then [_payload] are
     // of the same class.
     return _payload.compareTo(snd._payload);
@@ -299,15 +323,31 @@ public final class KeyValue implements Comparable<KeyValue>
   /** Type-safe alternative to [equals]. */
   public boolean sameKey(KeyValue snd)
   {
+    if (snd == this)
+      return true;
     if (snd == null)
       return false;
-    return _code == snd._code && _payload.compareTo(snd._payload) == 0;
+    // Interned keys are equal only to themselves, see [intern()].
+    if (_id >= 0 && snd._id >= 0)
+      return false;
+    return _code == snd._code && (_payload == snd._payload
+        || _payload.compareTo(snd._payload) == 0);
   }
 
   @Override
   public int hashCode()
   {
-    return _payload.hashCode() + _code;
+    return _hash;
+  }
+
+  /** Two keys are equal if and only if their handles are equal. Suitable for
+      collections of primitive [long]. The key is interned if it wasn't
+      already. Handles are not stable across processes and are not unique
+      for the keys past the [MAX_INTERNED] limit. */
+  public long handle()
+  {
+    KeyValue k = intern(this);
+    return ((long)k._code << 32) | (k._id & 0xFFFFFFFFL);
   }
 
   public String toString()
@@ -325,6 +365,16 @@ public final class KeyValue implements Comparable<KeyValue>
       throw new NullPointerException("KeyValue payload cannot be null");
     _payload = p;
     _code = (kind & KIND_BITS) | (flags & FLAGS_BITS) | (value & VALUE_BITS);
+    _hash = _payload.hashCode() + _code;
+  }
+
+  /** [p] is already a payload of an other key, the keys derived from an
+      interned key share its payload. */
+  private KeyValue(Comparable p, int code)
+  {
+    _payload = p;
+    _code = code;
+    _hash = _payload.hashCode() + _code;
   }
 
   public KeyValue(Comparable p, Kind k, int v, int f)
@@ -494,25 +544,104 @@ public final class KeyValue implements Comparable<KeyValue>
   }
 
   /** Make a modifier key for passing to [KeyModifier]. */
+  private static final KeyValue[] _internal_modifiers =
+    new KeyValue[MODIFIERS.length];
+
   public static KeyValue makeInternalModifier(Modifier mod)
   {
-    return new KeyValue("", Kind.Modifier, mod.ordinal(), 0);
+    KeyValue kv = _internal_modifiers[mod.ordinal()];
+    if (kv == null)
+    {
+      kv = new KeyValue("", Kind.Modifier, mod.ordinal(), 0);
+      _internal_modifiers[mod.ordinal()] = kv;
+    }
+    return kv;
   }
 
   /** Return a key by its name. If the given name doesn't correspond to any
-      special key, it is parsed with [KeyValueParser]. */
+      special key, it is parsed with [KeyValueParser]. The returned key is
+      interned, the same instance is returned for the same name. */
   public static KeyValue getKeyByName(String name)
   {
-    KeyValue k = getSpecialKeyByName(name);
+    KeyValue k = _keys_by_name.get(name);
     if (k != null)
       return k;
-    try
+    k = getSpecialKeyByName(name);
+    if (k == null)
+    {
+      try
+      {
+        k = KeyValueParser.parse(name);
+      }
+      catch (KeyValueParser.ParseError _e)
+      {
+        k = makeStringKey(name);
+      }
+    }
+    k = intern(k);
+    if (_keys_by_name.size() < MAX_INTERNED)
+      _keys_by_name.put(name, k);
+    return k;
+  }
+
+  /** The keys returned by [getKeyByName()], by name. */
+  private static final ConcurrentHashMap<String, KeyValue> _keys_by_name =
+    new ConcurrentHashMap<String, KeyValue>();
+
+  /** Interned keys are registered in [_interned] and indexed by their id in
+      [_interned_by_id]. Keys are not interned once the limit is reached, to
+      not grow indefinitely on unusual custom layouts. */
+  static final int MAX_INTERNED = 0x10000;
+  private static final HashMap<KeyValue, KeyValue> _interned =
+    new HashMap<KeyValue, KeyValue>();
+  private static final ArrayList<KeyValue> _interned_by_id =
+    new ArrayList<KeyValue>();
+  /** Payloads of the interned keys. Interned keys with equal payloads share
+      the same instance, which makes [compareTo] and [sameKey] an identity
+      check in the common case. */
+  private static final HashMap<Comparable, Comparable> _interned_payloads =
+    new HashMap<Comparable, Comparable>();
+
+  /** Return the canonical instance of a key, which is equal to [k]. Payloads
+      are interned here rather than in the constructor, which is called on
+      every key press. */
+  public static KeyValue intern(KeyValue k)
+  {
+    if (k._id >= 0)
+      return k;
+    synchronized (_interned)
     {
-      return KeyValueParser.parse(name);
+      KeyValue c = _interned.get(k);
+      if (c != null)
+        return c;
+      if (_interned_by_id.size() >= MAX_INTERNED)
+        return k;
+      Comparable p = _interned_payloads.get(k._payload);
+      if (p == null)
+        _interned_payloads.put(k._payload, k._payload);
+      else if (p != k._payload)
+        k = new KeyValue(p, k._code);
+      k._id = _interned_by_id.size();
+      _interned_by_id.add(k);
+      _interned.put(k, k);
+      return k;
     }
-    catch (KeyValueParser.ParseError _e)
+  }
+
+  /** A small integer unique to a canonical key, or [-1] if the key is not
+      interned. Two interned keys are equal if and only if they are the same
+      instance. See [intern()]. */
+  public int id()
+  {
+    return _id;
+  }
+
+  /** The interned key that has the given [id()]. */
+  public static KeyValue byId(int id)
+  {
+    synchronized (_interned)
     {
-      return makeStringKey(name);
+      return _interned_by_id.get(id);
     }
   }
 
@@ -887,5 +1016,17 @@ public final class KeyValue implements Comparable<KeyValue>
       }
       return _symbol.compareTo(snd._symbol);
     }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      return (obj instanceof Macro) && compareTo((Macro)obj) == 0;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return Arrays.hashCode(keys) * 31 + _symbol.hashCode();
+    }
   };
 }
@@ -3,10 +3,12 @@ package juloo.keyboard2;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.res.Resources;
 import android.inputmethodservice.InputMethodService;
 import android.os.Build.VERSION;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.text.InputType;
 import android.util.Log;
 import android.util.LogPrinter;
@@ -69,9 +71,11 @@ public class Keyboard2 extends InputMethodService
 
   void setTextLayout(int l)
   {
+    long start_ms = SystemClock.uptimeMillis();
     _config.set_current_layout(l);
     _currentSpecialLayout = null;
     _keyboardView.setKeyboard(current_layout());
+    Logs.debug_layout_switch(start_ms);
   }
 
   void incrTextLayout(int delta)
@@ -104,10 +108,70 @@ public class Keyboard2 extends InputMethodService
         current_layout_unmodified());
   }
 
+  /** Load the locale's layout, the special layouts and the emojis in the
+      background, these are otherwise loaded on the UI thread the first time
+      they are used. The layouts in [_config.layouts] are already loaded by
+      [Config]. The results are published through the synchronized caches of
+      [KeyboardData.load()] and [Emoji.init()]. */
+  private void prewarm_async()
+  {
+    final Resources res = getResources();
+    String name = null;
+    if (VERSION.SDK_INT >= 12)
+    {
+      InputMethodManager imm = get_imm();
+      InputMethodSubtype subtype = defaultSubtypes(imm, getEnabledSubtypes(imm));
+      if (subtype != null)
+        name = subtype.getExtraValueOf("default_layout");
+    }
+    final String locale_layout = name;
+    Utils.run_in_background(() -> {
+      long start_ms = SystemClock.uptimeMillis();
+      // Same fallback as [refreshSubtypeImm()].
+      if (locale_layout == null
+          || LayoutsPreference.layout_of_string(res, locale_layout) == null)
+        KeyboardData.load(res, R.xml.latn_qwerty_us);
+      for (int id : PREWARM_LAYOUTS)
+        KeyboardData.load(res, id);
+      Emoji.init(res);
+      final long elapsed = SystemClock.uptimeMillis() - start_ms;
+      _handler.post(() -> { Logs.debug("Prewarmed in " + elapsed + "ms"); });
+    });
+  }
+
+  /** Used for number fields and by the "switch_greekmath" key. */
+  static final int[] PREWARM_LAYOUTS = new int[]{
+    R.xml.numeric, R.xml.pin, R.xml.greekmath
+  };
+
+  /** Compute the modified layouts reachable with [SWITCH_FORWARD] and
+      [SWITCH_BACKWARD] for the current editor. Posted after the input view
+      is shown so that the first layout switch is a cache hit in
+      [LayoutModifier.modify_layout()]. */
+  private final Runnable _prewarm_neighbour_layouts = new Runnable()
+  {
+    public void run()
+    {
+      int s = _config.layouts.size();
+      if (s < 2)
+        return;
+      int current = _config.get_current_layout();
+      if (current >= s)
+        current = 0;
+      for (int delta : new int[]{ 1, -1 })
+      {
+        KeyboardData l = _config.layouts.get((current + delta + s) % s);
+        LayoutModifier.modify_layout((l == null) ? _localeTextLayout : l);
+      }
+    }
+  };
+
   @Override
   public void onCreate()
   {
     super.onCreate();
+    Logs.startup();
+    ComposeKey.load_data_async();
     SharedPreferences prefs = DirectBootAwarePreferences.get_shared_preferences(this);
     _handler = new Handler(getMainLooper());
     _keyeventhandler = new KeyEventHandler(this.new Receiver());
@@ -115,11 +179,13 @@ public class Keyboard2 extends InputMethodService
     Config.initGlobalConfig(prefs, getResources(), _keyeventhandler, _foldStateTracker.isUnfolded());
     prefs.registerOnSharedPreferenceChangeListener(this);
     _config = Config.globalConfig();
+    set_user_compose();
     _keyboardView = (Keyboard2View)inflate_view(R.layout.keyboard);
     _keyboardView.reset();
     Logs.set_debug_logs(getResources().getBoolean(R.bool.debug_logs));
     ClipboardHistoryService.on_startup(this, _keyeventhandler);
     _foldStateTracker.setChangedCallback(() -> { refresh_config(); });
+    prewarm_async();
   }
 
   @Override
@@ -147,12 +213,28 @@ public class Keyboard2 extends InputMethodService
     return ExtraKeys.EMPTY;
   }
 
+  /** The subtypes' extra keys are re-used as long as the subtypes are the
+      same, see [LayoutModifier.Fingerprint]. */
+  private List<String> _subtypes_extra_keys_src = null;
+  private ExtraKeys _subtypes_extra_keys = null;
+
   private void refreshAccentsOption(InputMethodManager imm, List<InputMethodSubtype> enabled_subtypes)
   {
-    List<ExtraKeys> extra_keys = new ArrayList<ExtraKeys>();
+    List<String> src = new ArrayList<String>();
     for (InputMethodSubtype s : enabled_subtypes)
-      extra_keys.add(extra_keys_of_subtype(s));
-    _config.extra_keys_subtype = ExtraKeys.merge(extra_keys);
+    {
+      src.add(s.getExtraValueOf("script"));
+      src.add(s.getExtraValueOf("extra_keys"));
+    }
+    if (!src.equals(_subtypes_extra_keys_src))
+    {
+      List<ExtraKeys> extra_keys = new ArrayList<ExtraKeys>();
+      for (InputMethodSubtype s : enabled_subtypes)
+        extra_keys.add(extra_keys_of_subtype(s));
+      _subtypes_extra_keys = ExtraKeys.merge(extra_keys);
+      _subtypes_extra_keys_src = src;
+    }
+    _config.extra_keys_subtype = _subtypes_extra_keys;
   }
 
   InputMethodManager get_imm()
@@ -198,12 +280,23 @@ public class Keyboard2 extends InputMethodService
     _localeTextLayout = default_layout;
   }
 
+  /** The view is refreshed once the sequences are compiled. */
+  private void set_user_compose()
+  {
+    ComposeKey.set_user_sequences_async(_config.custom_compose, getCacheDir(),
+        _handler, () -> {
+          if (_keyboardView != null)
+            _keyboardView.compose_data_changed();
+        });
+  }
+
   /** Might re-create the keyboard view. [_keyboardView.setKeyboard()] and
       [setInputView()] must be called soon after. */
   private void refresh_config()
   {
     int prev_theme = _config.theme;
     _config.refresh(getResources(), _foldStateTracker.isUnfolded());
+    set_user_compose();
     refreshSubtypeImm();
     // Refreshing the theme config requires re-creating the views
     if (prev_theme != _config.theme)
@@ -239,6 +332,8 @@ public class Keyboard2 extends InputMethodService
     _keyeventhandler.started(_config);
     setInputView(_keyboardView);
     Logs.debug_startup_input_view(info, _config);
+    _handler.removeCallbacks(_prewarm_neighbour_layouts);
+    _handler.post(_prewarm_neighbour_layouts);
   }
 
   @Override
@@ -343,6 +438,7 @@ public class Keyboard2 extends InputMethodService
   @Override
   public void onSharedPreferenceChanged(SharedPreferences _prefs, String _key)
   {
+    LayoutModifier.clear_cache();
     refresh_config();
     _keyboardView.setKeyboard(current_layout());
   }
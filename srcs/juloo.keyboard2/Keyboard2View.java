@@ -2,11 +2,13 @@ package juloo.keyboard2;
 
 import android.content.Context;
 import android.content.ContextWrapper;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Insets;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.graphics.Region;
 import android.inputmethodservice.InputMethodService;
 import android.os.Build.VERSION;
 import android.util.AttributeSet;
@@ -18,7 +20,9 @@ import android.view.WindowInsets;
 import android.view.WindowManager;
 import android.view.WindowMetrics;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class Keyboard2View extends View
   implements View.OnTouchListener, Pointers.IPointerEventHandler
@@ -38,13 +42,23 @@ public class Keyboard2View extends View
 
   private Pointers.Modifiers _mods;
 
+  /** Labels of the keys for the current modifiers. */
+  private ResolvedLayout.Cache _labels_cache = null;
+  private ResolvedLayout _labels = null;
+
+  /** State of the pressed keys and labels that have been drawn. Used to
+      redraw only the keys that changed. See [invalidateChangedKeys()]. */
+  private HashMap<KeyboardData.Key, Integer> _drawn_key_states = new HashMap<KeyboardData.Key, Integer>();
+  private HashMap<KeyboardData.Key, Integer> _invalidated_key_states = new HashMap<KeyboardData.Key, Integer>();
+  /** Pressed keys being drawn, see [onDraw()]. */
+  private HashMap<KeyboardData.Key, Integer> _pressed_key_states = new HashMap<KeyboardData.Key, Integer>();
+  private ResolvedLayout _drawn_labels = null;
+
   private static int _currentWhat = 0;
 
   private Config _config;
 
   private float _keyWidth;
-  private float _mainLabelSize;
-  private float _subLabelSize;
   private float _marginRight;
   private float _marginLeft;
   private float _marginBottom;
@@ -54,15 +68,17 @@ public class Keyboard2View extends View
 
   private Theme _theme;
   private Theme.Computed _tc;
+  private KeyHitIndex _hit_index;
 
-  private static RectF _tmpRect = new RectF();
+  /** Every keys drawn in the released state, redrawn when the keyboard, the
+      modifiers or the theme change. The pressed keys are drawn on top. */
+  private Bitmap _layer = null;
+  private Canvas _layer_canvas = new Canvas();
+  private boolean _layer_valid = false;
+  private ResolvedLayout _layer_labels = null;
 
-  enum Vertical
-  {
-    TOP,
-    CENTER,
-    BOTTOM
-  }
+  private static RectF _tmpRect = new RectF();
+  private Rect _clip = new Rect();
 
   public Keyboard2View(Context context, AttributeSet attrs)
   {
@@ -113,18 +129,36 @@ public class Keyboard2View extends View
     _shift_key = _keyboard.findKeyWithValue(_shift_kv);
     _compose_kv = KeyValue.getKeyByName("compose");
     _compose_key = _keyboard.findKeyWithValue(_compose_kv);
-    KeyModifier.set_modmap(_keyboard.modmap);
+    KeyModifier.set_layout(_keyboard);
+    _labels_cache = new ResolvedLayout.Cache(_keyboard);
     reset();
   }
 
   public void reset()
   {
     _mods = Pointers.Modifiers.EMPTY;
+    if (_labels_cache != null)
+      _labels = _labels_cache.get(_mods);
     _pointers.clear();
+    _drawn_key_states.clear();
+    _drawn_labels = null;
+    _layer_valid = false;
     requestLayout();
     invalidate();
   }
 
+  /** The labels are computed with the compose data, called when it changed.
+      Unlike [reset()], the pressed keys are kept. */
+  public void compose_data_changed()
+  {
+    if (_keyboard == null)
+      return;
+    KeyModifier.set_layout(_keyboard);
+    _labels_cache = new ResolvedLayout.Cache(_keyboard);
+    _labels = _labels_cache.get(_mods);
+    invalidate();
+  }
+
   void set_fake_ptr_latched(KeyboardData.Key key, KeyValue kv, boolean latched,
       boolean lock)
   {
@@ -162,7 +196,7 @@ public class Keyboard2View extends View
   {
     updateFlags();
     _config.handler.key_down(k, isSwipe);
-    invalidate();
+    invalidateChangedKeys();
     vibrate();
   }
 
@@ -172,7 +206,7 @@ public class Keyboard2View extends View
     // flags.
     _config.handler.key_up(k, mods);
     updateFlags();
-    invalidate();
+    invalidateChangedKeys();
   }
 
   public void onPointerHold(KeyValue k, Pointers.Modifiers mods)
@@ -184,7 +218,7 @@ public class Keyboard2View extends View
   public void onPointerFlagsChanged(boolean shouldVibrate)
   {
     updateFlags();
-    invalidate();
+    invalidateChangedKeys();
     if (shouldVibrate)
       vibrate();
   }
@@ -192,9 +226,57 @@ public class Keyboard2View extends View
   private void updateFlags()
   {
     _mods = _pointers.getModifiers();
+    _labels = _labels_cache.get(_mods);
     _config.handler.mods_changed(_mods);
   }
 
+  /** Invalidate the keys whose pressed state changed since the last call.
+      The whole keyboard is invalidated when the labels change. */
+  private void invalidateChangedKeys()
+  {
+    HashMap<KeyboardData.Key, Integer> key_states = _invalidated_key_states;
+    key_states.clear();
+    _pointers.getKeyStates(key_states);
+    if (_tc == null || _labels != _drawn_labels)
+      invalidate();
+    else
+    {
+      for (Map.Entry<KeyboardData.Key, Integer> e : key_states.entrySet())
+        if (!e.getValue().equals(_drawn_key_states.get(e.getKey())))
+          invalidateKey(e.getKey());
+      for (KeyboardData.Key k : _drawn_key_states.keySet())
+        if (!key_states.containsKey(k))
+          invalidateKey(k);
+    }
+    _invalidated_key_states = _drawn_key_states;
+    _drawn_key_states = key_states;
+    _drawn_labels = _labels;
+  }
+
+  private void invalidateKey(KeyboardData.Key key)
+  {
+    if (keyBounds(key, _tmpRect))
+      invalidate((int)_tmpRect.left, (int)_tmpRect.top,
+          (int)Math.ceil(_tmpRect.right), (int)Math.ceil(_tmpRect.bottom));
+  }
+
+  /** Area covered by [key], including the margins. Returns [false] if the key
+      is not on the keyboard. The drawn keys are offset from [_hit_index] by
+      half the margins. */
+  private boolean keyBounds(KeyboardData.Key key, RectF out)
+  {
+    int pos = _hit_index.position(key);
+    if (pos < 0)
+      return false;
+    int r = pos >> 16;
+    int c = pos & 0xFFFF;
+    float dx = _tc.margin_left;
+    float dy = _tc.margin_top - _config.marginTop;
+    out.set(_hit_index.key_left(r, c) + dx, _hit_index.row_top(r) + dy,
+        _hit_index.key_right(r, c) + dx, _hit_index.row_bottom(r) + dy);
+    return true;
+  }
+
   @Override
   public boolean onTouch(View v, MotionEvent event)
   {
@@ -215,8 +297,24 @@ public class Keyboard2View extends View
           _pointers.onTouchDown(tx, ty, event.getPointerId(p), key);
         break;
       case MotionEvent.ACTION_MOVE:
-        for (p = 0; p < event.getPointerCount(); p++)
-          _pointers.onTouchMove(event.getX(p), event.getY(p), event.getPointerId(p));
+        // Samples batched since the last event are processed in order, so
+        // that gestures are detected at the sample where they happened.
+        int n_ptrs = event.getPointerCount();
+        int n_hist = event.getHistorySize();
+        for (int h = 0; h < n_hist; h++)
+        {
+          long t = event.getHistoricalEventTime(h);
+          for (p = 0; p < n_ptrs; p++)
+            _pointers.onTouchMove(event.getHistoricalX(p, h),
+                event.getHistoricalY(p, h), event.getPointerId(p), t);
+        }
+        long event_time = event.getEventTime();
+        for (p = 0; p < n_ptrs; p++)
+          _pointers.onTouchMove(event.getX(p), event.getY(p),
+              event.getPointerId(p), event_time);
+        long detected = _pointers.take_detection_time();
+        if (detected >= 0)
+          Logs.debug_gesture_lead(event_time - detected);
         break;
       case MotionEvent.ACTION_CANCEL:
         _pointers.onTouchCancel();
@@ -227,37 +325,9 @@ public class Keyboard2View extends View
     return (true);
   }
 
-  private KeyboardData.Row getRowAtPosition(float ty)
-  {
-    float y = _config.marginTop;
-    if (ty < y)
-      return null;
-    for (KeyboardData.Row row : _keyboard.rows)
-    {
-      y += (row.shift + row.height) * _tc.row_height;
-      if (ty < y)
-        return row;
-    }
-    return null;
-  }
-
   private KeyboardData.Key getKeyAtPosition(float tx, float ty)
   {
-    KeyboardData.Row row = getRowAtPosition(ty);
-    float x = _marginLeft;
-    if (row == null || tx < x)
-      return null;
-    for (KeyboardData.Key key : row.keys)
-    {
-      float xLeft = x + key.shift * _keyWidth;
-      float xRight = xLeft + key.width * _keyWidth;
-      if (tx < xLeft)
-        return null;
-      if (tx < xRight)
-        return key;
-      x = xRight;
-    }
-    return null;
+    return _hit_index.get_key(tx, ty);
   }
 
   private void vibrate()
@@ -276,17 +346,10 @@ public class Keyboard2View extends View
     _marginBottom = _config.margin_bottom + _insets_bottom;
     width += _insets_left + _insets_right;
     _keyWidth = (width - _marginLeft - _marginRight) / _keyboard.keysWidth;
-    _tc = new Theme.Computed(_theme, _config, _keyWidth, _keyboard);
-    // Compute the size of labels based on the width or the height of keys. The
-    // margin around keys is taken into account. Keys normal aspect ratio is
-    // assumed to be 3/2 for a 10 columns layout. It's generally more, the
-    // width computation is useful when the keyboard is unusually high.
-    float labelBaseSize = Math.min(
-        _tc.row_height - _tc.vertical_margin,
-        (width / 10 - _tc.horizontal_margin) * 3/2
-        ) * _config.characterSize;
-    _mainLabelSize = labelBaseSize * _config.labelTextSize;
-    _subLabelSize = labelBaseSize * _config.sublabelTextSize;
+    _tc = new Theme.Computed(_theme, _config, _keyWidth, _keyboard, width);
+    _hit_index = new KeyHitIndex(_keyboard, _config.marginTop, _marginLeft,
+        _tc.row_height, _keyWidth);
+    _layer_valid = false;
     int height =
       (int)(_tc.row_height * _keyboard.keysHeight
           + _config.marginTop + _marginBottom);
@@ -328,43 +391,92 @@ public class Keyboard2View extends View
     return WindowInsets.CONSUMED;
   }
 
-  /** Horizontal and vertical position of the 9 indexes. */
-  static final Paint.Align[] LABEL_POSITION_H = new Paint.Align[]{
-    Paint.Align.CENTER, Paint.Align.LEFT, Paint.Align.RIGHT, Paint.Align.LEFT,
-    Paint.Align.RIGHT, Paint.Align.LEFT, Paint.Align.RIGHT,
-    Paint.Align.CENTER, Paint.Align.CENTER
-  };
-
-  static final Vertical[] LABEL_POSITION_V = new Vertical[]{
-    Vertical.CENTER, Vertical.TOP, Vertical.TOP, Vertical.BOTTOM,
-    Vertical.BOTTOM, Vertical.CENTER, Vertical.CENTER, Vertical.TOP,
-    Vertical.BOTTOM
-  };
-
   @Override
   protected void onDraw(Canvas canvas)
   {
     // Set keyboard background opacity
     getBackground().setAlpha(_config.keyboardOpacity);
+    if (!_layer_valid || _layer_labels != _labels)
+      drawLayer();
+    if (_layer == null)
+      return;
+    HashMap<KeyboardData.Key, Integer> pressed = _pressed_key_states;
+    pressed.clear();
+    _pointers.getKeyStates(pressed);
+    // The pressed keys are drawn on top of the layer, clip them out.
+    canvas.save();
+    for (KeyboardData.Key k : pressed.keySet())
+      if (keyBounds(k, _tmpRect))
+      {
+        if (VERSION.SDK_INT >= 26)
+          canvas.clipOutRect(_tmpRect);
+        else
+          canvas.clipRect(_tmpRect, Region.Op.DIFFERENCE);
+      }
+    canvas.drawBitmap(_layer, 0.f, 0.f, null);
+    canvas.restore();
+    drawKeys(canvas, pressed);
+  }
+
+  /** Redraw every keys in the released state into [_layer]. */
+  private void drawLayer()
+  {
+    int w = getWidth();
+    int h = getHeight();
+    if (w <= 0 || h <= 0)
+      return;
+    // The previous bitmap is not recycled, the last display list might still
+    // reference it.
+    if (_layer == null || _layer.getWidth() != w || _layer.getHeight() != h)
+    {
+      _layer = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+      _layer_canvas.setBitmap(_layer);
+    }
+    else
+      _layer.eraseColor(0);
+    drawKeys(_layer_canvas, null);
+    _layer_valid = true;
+    _layer_labels = _labels;
+  }
+
+  /** Draw the keys in [pressed_keys] in the pressed state, or every keys in
+      the released state if it is [null]. */
+  private void drawKeys(Canvas canvas,
+      HashMap<KeyboardData.Key, Integer> pressed_keys)
+  {
+    boolean pressed = (pressed_keys != null);
+    // Only the keys that intersect with the invalidated area are drawn.
+    canvas.getClipBounds(_clip);
     float y = _tc.margin_top;
-    for (KeyboardData.Row row : _keyboard.rows)
+    for (int r = 0; r < _keyboard.rows.size(); r++)
     {
+      KeyboardData.Row row = _keyboard.rows.get(r);
       y += row.shift * _tc.row_height;
       float x = _marginLeft + _tc.margin_left;
       float keyH = row.height * _tc.row_height - _tc.vertical_margin;
-      for (KeyboardData.Key k : row.keys)
+      if (y > _clip.bottom || y + keyH < _clip.top)
       {
+        y += row.height * _tc.row_height;
+        continue;
+      }
+      for (int c = 0; c < row.keys.size(); c++)
+      {
+        KeyboardData.Key k = row.keys.get(c);
         x += k.shift * _keyWidth;
         float keyW = _keyWidth * k.width - _tc.horizontal_margin;
-        boolean isKeyDown = _pointers.isKeyDown(k);
-        Theme.Computed.Key tc_key = isKeyDown ? _tc.key_activated : _tc.key;
-        drawKeyFrame(canvas, x, y, keyW, keyH, tc_key);
-        if (k.keys[0] != null)
-          drawLabel(canvas, k.keys[0], keyW / 2f + x, y, keyH, isKeyDown, tc_key);
-        for (int i = 1; i < 9; i++)
+        if (x > _clip.right || x + keyW < _clip.left
+            || (pressed && !pressed_keys.containsKey(k)))
         {
-          if (k.keys[i] != null)
-            drawSubLabel(canvas, k.keys[i], x, y, keyW, keyH, i, isKeyDown, tc_key);
+          x += _keyWidth * k.width;
+          continue;
+        }
+        Theme.Computed.Key tc_key = pressed ? _tc.key_activated : _tc.key;
+        tc_key.draw_frame(canvas, x, y, keyW, keyH);
+        for (int i = 0; i < 9; i++)
+        {
+          KeyValue kv = _labels.get(r, c, i);
+          if (kv != null)
+            drawLabel(canvas, kv, i, x, y, keyW, keyH, pressed);
         }
         drawIndication(canvas, k, x, y, keyW, keyH, _tc);
         x += _keyWidth * k.width;
@@ -377,37 +489,10 @@ public class Keyboard2View extends View
   public void onDetachedFromWindow()
   {
     super.onDetachedFromWindow();
-  }
-
-  /** Draw borders and background of the key. */
-  void drawKeyFrame(Canvas canvas, float x, float y, float keyW, float keyH,
-      Theme.Computed.Key tc)
-  {
-    float r = tc.border_radius;
-    float w = tc.border_width;
-    float padding = w / 2.f;
-    _tmpRect.set(x + padding, y + padding, x + keyW - padding, y + keyH - padding);
-    canvas.drawRoundRect(_tmpRect, r, r, tc.bg_paint);
-    if (w > 0.f)
-    {
-      float overlap = r - r * 0.85f + w; // sin(45°)
-      drawBorder(canvas, x, y, x + overlap, y + keyH, tc.border_left_paint, tc);
-      drawBorder(canvas, x + keyW - overlap, y, x + keyW, y + keyH, tc.border_right_paint, tc);
-      drawBorder(canvas, x, y, x + keyW, y + overlap, tc.border_top_paint, tc);
-      drawBorder(canvas, x, y + keyH - overlap, x + keyW, y + keyH, tc.border_bottom_paint, tc);
-    }
-  }
-
-  /** Clip to draw a border at a time. This allows to call [drawRoundRect]
-      several time with the same parameters but a different Paint. */
-  void drawBorder(Canvas canvas, float clipl, float clipt, float clipr,
-      float clipb, Paint paint, Theme.Computed.Key tc)
-  {
-    float r = tc.border_radius;
-    canvas.save();
-    canvas.clipRect(clipl, clipt, clipr, clipb);
-    canvas.drawRoundRect(_tmpRect, r, r, paint);
-    canvas.restore();
+    _layer = null;
+    _layer_valid = false;
+    if (_tc != null)
+      _tc.release();
   }
 
   private int labelColor(KeyValue k, boolean isKeyDown, boolean sublabel)
@@ -431,43 +516,19 @@ public class Keyboard2View extends View
     return sublabel ? _theme.subLabelColor : _theme.labelColor;
   }
 
-  private void drawLabel(Canvas canvas, KeyValue kv, float x, float y,
-      float keyH, boolean isKeyDown, Theme.Computed.Key tc)
+  /** Draw the label at position [index] of a key. Geometry is precomputed in
+      [Theme.Computed]. */
+  private void drawLabel(Canvas canvas, KeyValue kv, int index, float x,
+      float y, float keyW, float keyH, boolean isKeyDown)
   {
-    kv = modifyKey(kv, _mods);
-    if (kv == null)
-      return;
-    float textSize = scaleTextSize(kv, true);
-    Paint p = tc.label_paint(kv.hasFlagsAny(KeyValue.FLAG_KEY_FONT), labelColor(kv, isKeyDown, false), textSize);
-    canvas.drawText(kv.getString(), x, (keyH - p.ascent() - p.descent()) / 2f + y, p);
-  }
-
-  private void drawSubLabel(Canvas canvas, KeyValue kv, float x, float y,
-      float keyW, float keyH, int sub_index, boolean isKeyDown,
-      Theme.Computed.Key tc)
-  {
-    Paint.Align a = LABEL_POSITION_H[sub_index];
-    Vertical v = LABEL_POSITION_V[sub_index];
-    kv = modifyKey(kv, _mods);
-    if (kv == null)
-      return;
-    float textSize = scaleTextSize(kv, false);
-    Paint p = tc.sublabel_paint(kv.hasFlagsAny(KeyValue.FLAG_KEY_FONT), labelColor(kv, isKeyDown, true), textSize, a);
-    float subPadding = _config.keyPadding;
-    if (v == Vertical.CENTER)
-      y += (keyH - p.ascent() - p.descent()) / 2f;
-    else
-      y += (v == Vertical.TOP) ? subPadding - p.ascent() : keyH - subPadding - p.descent();
-    if (a == Paint.Align.CENTER)
-      x += keyW / 2f;
-    else
-      x += (a == Paint.Align.LEFT) ? subPadding : keyW - subPadding;
+    Theme.Computed.Label l = _tc.label(index, kv);
+    Paint p = l.paint(labelColor(kv, isKeyDown, index != 0));
     String label = kv.getString();
     int label_len = label.length();
-    // Limit the label of string keys to 3 characters
-    if (label_len > 3 && kv.getKind() == KeyValue.Kind.String)
-      label_len = 3;
-    canvas.drawText(label, 0, label_len, x, y, p);
+    if (label_len > l.max_length && kv.getKind() == KeyValue.Kind.String)
+      label_len = l.max_length;
+    canvas.drawText(label, 0, label_len, x + keyW * l.x_ratio + l.x_offset,
+        y + keyH * l.y_ratio + l.y_offset, p);
   }
 
   private void drawIndication(Canvas canvas, KeyboardData.Key k, float x,
@@ -475,16 +536,8 @@ public class Keyboard2View extends View
   {
     if (k.indication == null || k.indication.equals(""))
       return;
-    Paint p = tc.indication_paint;
-    p.setTextSize(_subLabelSize);
-    canvas.drawText(k.indication, 0, k.indication.length(),
-        x + keyW / 2f, (keyH - p.ascent() - p.descent()) * 4/5 + y, p);
-  }
-
-  private float scaleTextSize(KeyValue k, boolean main_label)
-  {
-    float smaller_font = k.hasFlagsAny(KeyValue.FLAG_SMALLER_FONT) ? 0.75f : 1.f;
-    float label_size = main_label ? _mainLabelSize : _subLabelSize;
-    return label_size * smaller_font;
+    canvas.drawText(k.indication, 0, k.indication.length(), x + keyW / 2f,
+        y + keyH * tc.indication_y_ratio + tc.indication_y_offset,
+        tc.indication_paint);
   }
 }
@@ -4,10 +4,14 @@ import android.content.res.Resources;
 import android.content.res.XmlResourceParser;
 import android.util.Xml;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -37,13 +41,22 @@ public final class KeyboardData
   public final boolean locale_extra_keys;
   /** Position of every keys on the layout, see [getKeys()]. */
   private Map<KeyValue, KeyPos> _key_pos = null;
+  /** Built when the layout is first set, see [KeyModifier.set_layout()]. */
+  ModifierTable modifier_table = null;
 
+  /** Rows and keys that are not changed by [f] are shared with the new
+      layout. Returns [this] if nothing changed. */
   public KeyboardData mapKeys(MapKey f)
   {
     ArrayList<Row> rows_ = new ArrayList<Row>();
+    boolean changed = false;
     for (Row r : rows)
-      rows_.add(r.mapKeys(f));
-    return new KeyboardData(this, rows_);
+    {
+      Row r_ = r.mapKeys(f);
+      changed |= (r_ != r);
+      rows_.add(r_);
+    }
+    return changed ? new KeyboardData(this, rows_) : this;
   }
 
   /** Add keys from the given iterator into the keyboard. Preferred position is
@@ -53,24 +66,27 @@ public final class KeyboardData
     /* Keys that couldn't be placed at their preferred position. */
     ArrayList<KeyValue> unplaced_keys = new ArrayList<KeyValue>();
     ArrayList<Row> rows = new ArrayList<Row>(this.rows);
+    Map<KeyValue, KeyPos> key_pos = getKeys();
     while (extra_keys.hasNext())
     {
       Map.Entry<KeyValue, PreferredPos> kp = extra_keys.next();
-      if (!add_key_to_preferred_pos(rows, kp.getKey(), kp.getValue()))
+      if (!add_key_to_preferred_pos(rows, key_pos, kp.getKey(), kp.getValue()))
         unplaced_keys.add(kp.getKey());
     }
     for (KeyValue kv : unplaced_keys)
-      add_key_to_preferred_pos(rows, kv, PreferredPos.ANYWHERE);
+      add_key_to_preferred_pos(rows, key_pos, kv, PreferredPos.ANYWHERE);
     return new KeyboardData(this, rows);
   }
 
-  /** Place a key on the keyboard according to its preferred position. Mutates
-      [rows]. Returns [false] if it couldn't be placed. */
-  boolean add_key_to_preferred_pos(List<Row> rows, KeyValue kv, PreferredPos pos)
+  /** Place a key on the keyboard according to its preferred position.
+      [key_pos] is the position of the keys on [this]. Mutates [rows], see
+      [add_key_to_pos]. Returns [false] if it couldn't be placed. */
+  boolean add_key_to_preferred_pos(List<Row> rows, Map<KeyValue, KeyPos> key_pos,
+      KeyValue kv, PreferredPos pos)
   {
     if (pos.next_to != null)
     {
-      KeyPos next_to_pos = getKeys().get(pos.next_to);
+      KeyPos next_to_pos = key_pos.get(pos.next_to);
       // Use preferred direction if some preferred pos match
       if (next_to_pos != null)
       {
@@ -91,8 +107,8 @@ public final class KeyboardData
 
   /** Place a key on the keyboard. A value of [-1] in one of the coordinate
       means that the key can be placed anywhere in that coordinate, see
-      [PreferredPos]. Mutates [rows]. Returns [false] if it couldn't be placed.
-      */
+      [PreferredPos]. Mutates [rows]. The rows shared with [this] are copied
+      before being modified. Returns [false] if it couldn't be placed. */
   boolean add_key_to_pos(List<Row> rows, KeyValue kv, KeyPos p)
   {
     int i_row = p.row;
@@ -114,6 +130,11 @@ public final class KeyboardData
         {
           if (col.getKeyValue(i_dir) == null)
           {
+            if (i_row < this.rows.size() && row == this.rows.get(i_row))
+            {
+              row = row.copy();
+              rows.set(i_row, row);
+            }
             row.keys.set(i_col, col.withKeyValue(i_dir, kv));
             return true;
           }
@@ -129,18 +150,19 @@ public final class KeyboardData
     Iterator<Row> iterNumPadRows = num_pad.rows.iterator();
     for (Row row : rows)
     {
-      ArrayList<KeyboardData.Key> keys = new ArrayList<Key>(row.keys);
-      if (iterNumPadRows.hasNext())
+      List<Key> nps = iterNumPadRows.hasNext() ?
+        iterNumPadRows.next().keys : null;
+      // Rows without numpad keys are shared.
+      if (nps == null || nps.size() == 0)
       {
-        Row numPadRow = iterNumPadRows.next();
-        List<Key> nps = numPadRow.keys;
-        if (nps.size() > 0) {
-          float firstNumPadShift = 0.5f + keysWidth - row.keysWidth;
-          keys.add(nps.get(0).withShift(firstNumPadShift));
-          for (int i = 1; i < nps.size(); i++)
-            keys.add(nps.get(i));
-        }
+        extendedRows.add(row);
+        continue;
       }
+      ArrayList<KeyboardData.Key> keys = new ArrayList<Key>(row.keys);
+      float firstNumPadShift = 0.5f + keysWidth - row.keysWidth;
+      keys.add(nps.get(0).withShift(firstNumPadShift));
+      for (int i = 1; i < nps.size(); i++)
+        keys.add(nps.get(i));
       extendedRows.add(new Row(keys, row.height, row.shift));
     }
     return new KeyboardData(this, extendedRows);
@@ -179,25 +201,54 @@ public final class KeyboardData
 
   public static Row load_row(Resources res, int res_id) throws Exception
   {
+    try
+    {
+      Row row = CompiledLayouts.load_row(res.getResourceEntryName(res_id));
+      if (row != null)
+        return row;
+    }
+    catch (Exception e)
+    {
+      Logs.exn("Failed to load compiled row id " + res_id, e);
+    }
     return parse_row(res.getXml(res_id));
   }
 
   public static KeyboardData load_num_pad(Resources res) throws Exception
   {
-    return parse_keyboard(res.getXml(R.xml.numpad));
+    KeyboardData l = load(res, R.xml.numpad);
+    if (l == null)
+      throw new Exception("Failed to load the numpad");
+    return l;
   }
 
-  /** Load a layout from a resource ID. Returns [null] on error. */
+  /** Load a layout from a resource ID. Returns [null] on error. The layout
+      is decoded from [CompiledLayouts] if possible and parsed from the XML
+      resource otherwise. Can be called from any thread. */
   public static KeyboardData load(Resources res, int id)
   {
-    if (_layoutCache.containsKey(id))
-      return _layoutCache.get(id);
+    synchronized (_layoutCache)
+    {
+      if (_layoutCache.containsKey(id))
+        return _layoutCache.get(id);
+    }
     KeyboardData l = null;
+    try
+    {
+      l = CompiledLayouts.load_keyboard(res.getResourceEntryName(id));
+    }
+    catch (Exception e)
+    {
+      Logs.exn("Failed to load compiled layout id " + id, e);
+    }
     XmlResourceParser parser = null;
     try
     {
-      parser = res.getXml(id);
-      l = parse_keyboard(parser);
+      if (l == null)
+      {
+        parser = res.getXml(id);
+        l = parse_keyboard(parser);
+      }
     }
     catch (Exception e)
     {
@@ -205,10 +256,31 @@ public final class KeyboardData
     }
     if (parser != null)
       parser.close();
-    _layoutCache.put(id, l);
+    synchronized (_layoutCache)
+    {
+      // The layout might have been loaded concurrently, return the same
+      // instance to both callers.
+      if (_layoutCache.containsKey(id))
+        return _layoutCache.get(id);
+      _layoutCache.put(id, l);
+    }
     return l;
   }
 
+  static final int STRING_CACHE_SIZE = 16;
+
+  /** Custom layouts are parsed again each time the config is refreshed.
+      Indexed by the SHA-256 of the XML source, errors are not cached. */
+  private static final LinkedHashMap<ByteBuffer, KeyboardData> _stringCache =
+    new LinkedHashMap<ByteBuffer, KeyboardData>(16, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<ByteBuffer, KeyboardData> e)
+      {
+        return size() > STRING_CACHE_SIZE;
+      }
+    };
+
   /** Load a layout from a string. Returns [null] on error. */
   public static KeyboardData load_string(String src)
   {
@@ -223,15 +295,29 @@ public final class KeyboardData
   }
 
   /** Like [load_string] but throws an exception on error and do not return
-      [null]. */
+      [null]. The result is cached, the same instance is returned as long as
+      [src] doesn't change. */
   public static KeyboardData load_string_exn(String src) throws Exception
   {
+    ByteBuffer hash = ByteBuffer.wrap(MessageDigest.getInstance("SHA-256")
+        .digest(src.getBytes(StandardCharsets.UTF_8)));
+    synchronized (_stringCache)
+    {
+      KeyboardData l = _stringCache.get(hash);
+      if (l != null)
+        return l;
+    }
     XmlPullParser parser = Xml.newPullParser();
     parser.setInput(new StringReader(src));
-    return parse_keyboard(parser);
+    KeyboardData l = parse_keyboard(parser);
+    synchronized (_stringCache)
+    {
+      _stringCache.put(hash, l);
+    }
+    return l;
   }
 
-  private static KeyboardData parse_keyboard(XmlPullParser parser) throws Exception
+  static KeyboardData parse_keyboard(XmlPullParser parser) throws Exception
   {
     if (!expect_tag(parser, "keyboard"))
       throw error(parser, "Expected tag <keyboard>");
@@ -270,7 +356,7 @@ public final class KeyboardData
     return new KeyboardData(rows, kw, modmap, script, numpad_script, name, bottom_row, embedded_number_row, locale_extra_keys);
   }
 
-  private static float compute_max_width(List<Row> rows)
+  static float compute_max_width(List<Row> rows)
   {
     float w = 0.f;
     for (Row r : rows)
@@ -278,7 +364,7 @@ public final class KeyboardData
     return w;
   }
 
-  private static Row parse_row(XmlPullParser parser) throws Exception
+  static Row parse_row(XmlPullParser parser) throws Exception
   {
     if (!expect_tag(parser, "row"))
       throw error(parser, "Expected tag <row>");
@@ -363,18 +449,26 @@ public final class KeyboardData
       return dst;
     }
 
+    /** Returns [this] if [f] doesn't change any key. */
     public Row mapKeys(MapKey f)
     {
       ArrayList<Key> keys_ = new ArrayList<Key>();
+      boolean changed = false;
       for (Key k : keys)
-        keys_.add(f.apply(k));
-      return new Row(keys_, height, shift);
+      {
+        Key k_ = f.apply(k);
+        changed |= (k_ != k);
+        keys_.add(k_);
+      }
+      return changed ? new Row(keys_, height, shift) : this;
     }
 
     /** Change the width of every keys so that the row is 's' units wide. */
     public Row updateWidth(float newWidth)
     {
       final float s = newWidth / keysWidth;
+      if (s == 1.f)
+        return this;
       return mapKeys(new MapKey(){
         public Key apply(Key k) { return k.scaleWidth(s); }
       });
@@ -549,12 +643,19 @@ public final class KeyboardData
   public static abstract class MapKeyValues implements MapKey {
     abstract public KeyValue apply(KeyValue c, boolean localized);
 
+    /** Returns [k] if none of its key values changed. */
     public Key apply(Key k)
     {
       KeyValue[] ks = new KeyValue[k.keys.length];
+      boolean changed = false;
       for (int i = 0; i < ks.length; i++)
         if (k.keys[i] != null)
+        {
           ks[i] = apply(k.keys[i], k.keyHasFlag(i, Key.F_LOC));
+          changed |= (ks[i] != k.keys[i]);
+        }
+      if (!changed)
+        return k;
       return new Key(ks, k.anticircle, k.keysflags, k.width, k.shift, k.indication);
     }
   }
@@ -607,6 +708,21 @@ public final class KeyboardData
     {
       return new KeyPos(row, col, d);
     }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (!(obj instanceof KeyPos))
+        return false;
+      KeyPos p = (KeyPos)obj;
+      return row == p.row && col == p.col && dir == p.dir;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return (row * 31 + col) * 31 + dir;
+    }
   }
 
   /** See [addExtraKeys()]. */
@@ -637,6 +753,23 @@ public final class KeyboardData
       positions = src.positions;
     }
 
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (!(obj instanceof PreferredPos))
+        return false;
+      PreferredPos p = (PreferredPos)obj;
+      return (next_to == null ? p.next_to == null : next_to.equals(p.next_to))
+        && Arrays.equals(positions, p.positions);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return (next_to == null ? 0 : next_to.hashCode()) * 31
+        + Arrays.hashCode(positions);
+    }
+
     static final KeyPos[] ANYWHERE_POSITIONS =
       new KeyPos[]{ new KeyPos(-1, -1, -1) };
 
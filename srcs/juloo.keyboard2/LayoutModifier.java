@@ -2,10 +2,11 @@ package juloo.keyboard2;
 
 import android.content.res.Resources;
 import android.view.KeyEvent;
-import java.util.TreeMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 public final class LayoutModifier
 {
@@ -22,8 +23,27 @@ public final class LayoutModifier
    *  - Swap the enter and action keys
    *  - Add the optional numpad and number row
    *  - Add the extra keys
+   *  The result is cached, see [Fingerprint].
    */
   public static KeyboardData modify_layout(KeyboardData kw)
+  {
+    Fingerprint fp = new Fingerprint(kw, globalConfig);
+    KeyboardData modified = _modified.get(fp);
+    if (modified == null)
+    {
+      modified = modify_layout_uncached(kw);
+      _modified.put(fp, modified);
+    }
+    return modified;
+  }
+
+  /** Must be called when the preferences change. */
+  public static void clear_cache()
+  {
+    _modified.clear();
+  }
+
+  static KeyboardData modify_layout_uncached(KeyboardData kw)
   {
     // Extra keys are removed from the set as they are encountered during the
     // first iteration then automatically added.
@@ -202,9 +222,79 @@ public final class LayoutModifier
     }
   }
 
+  /** Everything [modify_layout] depends on. The base layout, the extra keys
+      and the subtype's extra keys are compared by identity, they are not
+      re-created unless something changed. See [Config.keep_if_equal()]. */
+  static final class Fingerprint
+  {
+    final KeyboardData base;
+    final int flags;
+    final String action_label;
+    final Map<KeyValue, KeyboardData.PreferredPos> extra_keys_param;
+    final Map<KeyValue, KeyboardData.PreferredPos> extra_keys_custom;
+    final ExtraKeys extra_keys_subtype;
+
+    public Fingerprint(KeyboardData kw, Config conf)
+    {
+      EditorConfig ec = conf.editor_config;
+      base = kw;
+      flags = (conf.show_numpad ? 1 : 0)
+        | (conf.add_number_row ? 2 : 0)
+        | (conf.number_row_symbols ? 4 : 0)
+        | (conf.inverse_numpad ? 8 : 0)
+        | (conf.switch_input_immediate ? 16 : 0)
+        | (conf.shouldOfferVoiceTyping ? 32 : 0)
+        | (ec.swapEnterActionKey ? 64 : 0)
+        // Only compared to 1 and 2 by [modify_key].
+        | (Math.min(conf.layouts.size(), 3) << 8);
+      action_label = ec.actionLabel;
+      extra_keys_param = conf.extra_keys_param;
+      extra_keys_custom = conf.extra_keys_custom;
+      extra_keys_subtype = conf.extra_keys_subtype;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (!(obj instanceof Fingerprint))
+        return false;
+      Fingerprint fp = (Fingerprint)obj;
+      return base == fp.base && flags == fp.flags
+        && extra_keys_subtype == fp.extra_keys_subtype
+        && extra_keys_param == fp.extra_keys_param
+        && extra_keys_custom == fp.extra_keys_custom
+        && (action_label == null ? fp.action_label == null
+            : action_label.equals(fp.action_label));
+    }
+
+    @Override
+    public int hashCode()
+    {
+      int h = System.identityHashCode(base) * 31 + flags;
+      h = h * 31 + (action_label == null ? 0 : action_label.hashCode());
+      h = h * 31 + System.identityHashCode(extra_keys_param);
+      return h * 31 + System.identityHashCode(extra_keys_custom);
+    }
+  }
+
+  static final int CACHE_SIZE = 8;
+
+  /** Most recently used modified layouts. */
+  static final LinkedHashMap<Fingerprint, KeyboardData> _modified =
+    new LinkedHashMap<Fingerprint, KeyboardData>(16, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry(
+          Map.Entry<Fingerprint, KeyboardData> e)
+      {
+        return size() > CACHE_SIZE;
+      }
+    };
+
   public static void init(Config globalConfig_, Resources res)
   {
     globalConfig = globalConfig_;
+    clear_cache();
     try
     {
       number_row_no_symbols = KeyboardData.load_row(res, R.xml.number_row_no_symbols);
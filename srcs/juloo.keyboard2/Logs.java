@@ -1,5 +1,6 @@
 package juloo.keyboard2;
 
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.LogPrinter;
 import android.view.inputmethod.EditorInfo;
@@ -33,6 +34,47 @@ public final class Logs
     debug("Migrating config version from " + from_version + " to " + to_version);
   }
 
+  /** [lead_ms] is how much earlier a gesture was detected thanks to the
+      historical samples of a move event. */
+  public static void debug_gesture_lead(long lead_ms)
+  {
+    if (_debug_logs != null && lead_ms > 0)
+      _debug_logs.println("Gesture detected " + lead_ms + "ms earlier");
+  }
+
+  /** Time at which the service was created, [0] once the first key stroke
+      has been reported. */
+  static long _startup_time = 0;
+  static boolean _layout_switched = false;
+
+  public static void startup()
+  {
+    _startup_time = SystemClock.uptimeMillis();
+    _layout_switched = false;
+  }
+
+  /** Report the time between the creation of the service and the first key
+      stroke. */
+  public static void debug_first_key()
+  {
+    if (_startup_time == 0)
+      return;
+    debug("First key " + (SystemClock.uptimeMillis() - _startup_time)
+        + "ms after startup");
+    _startup_time = 0;
+  }
+
+  /** Report the time taken by the first layout switch since startup.
+      [start_ms] is in the [SystemClock.uptimeMillis()] base. */
+  public static void debug_layout_switch(long start_ms)
+  {
+    if (_layout_switched)
+      return;
+    _layout_switched = true;
+    debug("First layout switch took "
+        + (SystemClock.uptimeMillis() - start_ms) + "ms");
+  }
+
   public static void debug(String s)
   {
     if (_debug_logs != null)
@@ -0,0 +1,97 @@
+package juloo.keyboard2;
+
+import java.util.ArrayList;
+
+/** The value of every keys of a layout under each of the modifiers that can
+    be activated from that layout. Built once when the layout is set, see
+    [KeyModifier.set_layout()]. Keys and modifiers that are not part of the
+    layout are not in the table. */
+public final class ModifierTable
+{
+  /** Row in [_results] of the keys, indexed by [KeyValue.id()]. [-1] for
+      keys not in the table. */
+  final int[] _key_rows;
+  /** Column in [_results] of the modifiers, indexed by ordinal. [-1] for
+      modifiers not in the table. */
+  final int[] _mod_cols;
+  final int _n_mods;
+  /** Results of [KeyModifier.modify_uncached()], interned. */
+  final KeyValue[] _results;
+  /** The compose data the results were computed with. */
+  final ComposeKey.Data compose_data;
+
+  /** Must be built while the modmap of [kw] is set. */
+  ModifierTable(KeyboardData kw)
+  {
+    compose_data = ComposeKey.data();
+    ArrayList<KeyValue> keys = new ArrayList<KeyValue>();
+    _mod_cols = new int[KeyValue.Modifier.values().length];
+    for (int i = 0; i < _mod_cols.length; i++)
+      _mod_cols[i] = -1;
+    int n_mods = 0;
+    // Available from the gestures on any layouts.
+    _mod_cols[KeyValue.Modifier.GESTURE.ordinal()] = n_mods++;
+    int max_id = -1;
+    for (KeyboardData.Row row : kw.rows)
+      for (KeyboardData.Key key : row.keys)
+        for (KeyValue kv : key.keys)
+        {
+          if (kv == null)
+            continue;
+          kv = KeyValue.intern(kv);
+          if (kv.id() < 0)
+            continue;
+          max_id = Math.max(max_id, kv.id());
+          keys.add(kv);
+          if (kv.getKind() == KeyValue.Kind.Modifier
+              && _mod_cols[kv.getModifier().ordinal()] < 0)
+            _mod_cols[kv.getModifier().ordinal()] = n_mods++;
+        }
+    _n_mods = n_mods;
+    _key_rows = new int[max_id + 1];
+    for (int i = 0; i <= max_id; i++)
+      _key_rows[i] = -1;
+    int n_keys = 0;
+    // Remove duplicates, the first [n_keys] elements are the rows.
+    for (int i = 0; i < keys.size(); i++)
+    {
+      KeyValue kv = keys.get(i);
+      if (_key_rows[kv.id()] < 0)
+      {
+        keys.set(n_keys, kv);
+        _key_rows[kv.id()] = n_keys++;
+      }
+    }
+    _results = new KeyValue[n_keys * n_mods];
+    KeyValue.Modifier[] mods = KeyValue.Modifier.values();
+    for (int k = 0; k < n_keys; k++)
+    {
+      KeyValue kv = keys.get(k);
+      int row = k * n_mods;
+      for (KeyValue.Modifier m : mods)
+      {
+        int col = _mod_cols[m.ordinal()];
+        if (col < 0)
+          continue;
+        KeyValue r = KeyModifier.modify_uncached(kv, m);
+        _results[row + col] = (r == null) ? null : KeyValue.intern(r);
+      }
+    }
+  }
+
+  /** Whether the result of [modify(k, mod)] is in the table. The keys of the
+      layout are interned when the table is built, other keys that are not
+      interned are never in the table. */
+  public boolean contains(KeyValue k, KeyValue.Modifier mod)
+  {
+    int id = k.id();
+    return id >= 0 && id < _key_rows.length && _key_rows[id] >= 0
+      && _mod_cols[mod.ordinal()] >= 0;
+  }
+
+  /** [k] and [mod] must be in the table, see [contains()]. */
+  public KeyValue modify(KeyValue k, KeyValue.Modifier mod)
+  {
+    return _results[_key_rows[k.id()] * _n_mods + _mod_cols[mod.ordinal()]];
+  }
+}
@@ -1,17 +1,16 @@
 package juloo.keyboard2;
 
 import android.os.Handler;
-import android.os.Message;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 /**
  * Manage pointers (fingers) on the screen and long presses.
  * Call back to IPointerEventHandler.
  */
-public final class Pointers implements Handler.Callback
+public final class Pointers implements KeyTimers.Callback
 {
   public static final int FLAG_P_LATCHABLE = 1;
   public static final int FLAG_P_LATCHED = (1 << 1);
@@ -24,16 +23,41 @@ public final class Pointers implements Handler.Callback
   /** Can't be locked, even when long pressing. */
   public static final int FLAG_P_CANT_LOCK = (1 << 7);
 
-  private Handler _longpress_handler;
-  private ArrayList<Pointer> _ptrs = new ArrayList<Pointer>();
+  /** Maximum number of pointers, including latched keys. New touches are
+      ignored when the limit is reached. */
+  static final int MAX_POINTERS = 32;
+
+  /** Long press and key repeat timers, indexed by [Pointer.timer]. */
+  private final KeyTimers _timers;
+  /** Active pointers, in the order they were added. Only the first [_n_ptrs]
+      elements are valid. */
+  private final Pointer[] _ptrs = new Pointer[MAX_POINTERS];
+  private int _n_ptrs = 0;
+  /** Pointer objects are reused to avoid allocations while typing. */
+  private final Pointer[] _free_ptrs = new Pointer[MAX_POINTERS];
+  private int _n_free_ptrs = 0;
+  /** Used by [getModifiers()]. */
+  private final KeyValue[] _mods_buf = new KeyValue[MAX_POINTERS];
   private IPointerEventHandler _handler;
   private Config _config;
+  /** Time of the sample at which the last gesture or slider step was
+      detected, [-1] if none. See [take_detection_time()]. */
+  private long _detection_time = -1;
 
   public Pointers(IPointerEventHandler h, Config c)
   {
-    _longpress_handler = new Handler(this);
+    this(h, c, new KeyTimers.HandlerClock(new Handler()));
+  }
+
+  /** Timers run on [clock]. Used in tests. */
+  Pointers(IPointerEventHandler h, Config c, KeyTimers.Clock clock)
+  {
+    _timers = new KeyTimers(clock, this, MAX_POINTERS);
     _handler = h;
     _config = c;
+    for (int i = 0; i < MAX_POINTERS; i++)
+      _free_ptrs[i] = new Pointer(i, new Sliding());
+    _n_free_ptrs = MAX_POINTERS;
   }
 
   /** Return the list of modifiers currently activated. */
@@ -45,41 +69,53 @@ public final class Pointers implements Handler.Callback
   /** When [skip_latched] is true, don't take flags of latched keys into account. */
   private Modifiers getModifiers(boolean skip_latched)
   {
-    int n_ptrs = _ptrs.size();
-    KeyValue[] mods = new KeyValue[n_ptrs];
     int n_mods = 0;
-    for (int i = 0; i < n_ptrs; i++)
+    for (int i = 0; i < _n_ptrs; i++)
     {
-      Pointer p = _ptrs.get(i);
+      Pointer p = _ptrs[i];
       if (p.value != null
           && !(skip_latched && p.hasFlagsAny(FLAG_P_LATCHED)
             && (p.flags & FLAG_P_LOCKED) == 0))
-        mods[n_mods++] = p.value;
+        _mods_buf[n_mods++] = p.value;
     }
-    return Modifiers.ofArray(mods, n_mods);
+    return Modifiers.ofArray(_mods_buf, n_mods);
   }
 
   public void clear()
   {
-    for (Pointer p : _ptrs)
-      stopLongPress(p);
-    _ptrs.clear();
+    for (int i = _n_ptrs - 1; i >= 0; i--)
+      removePtrAt(i);
   }
 
   public boolean isKeyDown(KeyboardData.Key k)
   {
-    for (Pointer p : _ptrs)
-      if (p.key == k)
+    for (int i = 0; i < _n_ptrs; i++)
+      if (_ptrs[i].key == k)
         return true;
     return false;
   }
 
+  /** Record the pressed keys into [states], associated with the union of the
+      flags of the pointers on them. */
+  public void getKeyStates(Map<KeyboardData.Key, Integer> states)
+  {
+    for (int i = 0; i < _n_ptrs; i++)
+    {
+      Pointer p = _ptrs[i];
+      Integer prev = states.get(p.key);
+      states.put(p.key, (prev == null) ? p.flags : (prev | p.flags));
+    }
+  }
+
   /** See [FLAG_P_*] flags. Returns [-1] if the key is not pressed. */
   public int getKeyFlags(KeyValue kv)
   {
-    for (Pointer p : _ptrs)
+    for (int i = 0; i < _n_ptrs; i++)
+    {
+      Pointer p = _ptrs[i];
       if (p.value != null && p.value.equals(kv))
         return p.flags;
+    }
     return -1;
   }
 
@@ -89,8 +125,8 @@ public final class Pointers implements Handler.Callback
     int flags = pointer_flags_of_kv(kv) | FLAG_P_FAKE | FLAG_P_LATCHED;
     if (locked)
       flags |= FLAG_P_LOCKED;
-    Pointer ptr = new Pointer(-1, key, kv, 0.f, 0.f, Modifiers.EMPTY, flags);
-    _ptrs.add(ptr);
+    if (addPtr(-1, key, kv, 0.f, 0.f, Modifiers.EMPTY, flags) == null)
+      return;
     _handler.onPointerFlagsChanged(false);
   }
 
@@ -192,10 +228,13 @@ public final class Pointers implements Handler.Callback
   /* Whether an other pointer is down on a non-special key. */
   private boolean isOtherPointerDown()
   {
-    for (Pointer p : _ptrs)
+    for (int i = 0; i < _n_ptrs; i++)
+    {
+      Pointer p = _ptrs[i];
       if (!p.hasFlagsAny(FLAG_P_LATCHED) &&
           (p.value == null || !p.value.hasFlagsAny(KeyValue.FLAG_SPECIAL)))
         return true;
+    }
     return false;
   }
 
@@ -203,14 +242,14 @@ public final class Pointers implements Handler.Callback
   {
     // Ignore new presses while a sliding key is active. On some devices, ghost
     // touch events can happen while the pointer travels on top of other keys.
-    if (isSliding())
+    if (isSliding() || _n_ptrs >= MAX_POINTERS)
       return;
     // Don't take latched modifiers into account if an other key is pressed.
     // The other key already "own" the latched modifiers and will clear them.
     Modifiers mods = getModifiers(isOtherPointerDown());
     KeyValue value = _handler.modifyKey(key.keys[0], mods);
-    Pointer ptr = make_pointer(pointerId, key, value, x, y, mods);
-    _ptrs.add(ptr);
+    int flags = (value == null) ? 0 : pointer_flags_of_kv(value);
+    Pointer ptr = addPtr(pointerId, key, value, x, y, mods, flags);
     startLongPress(ptr);
     _handler.onPointerDown(value, false);
   }
@@ -228,6 +267,61 @@ public final class Pointers implements Handler.Callback
     return k.keys[DIRECTION_TO_INDEX[direction]];
   }
 
+  /** The direction of a vector, as used by [getKeyAtDirection()]. Compares
+      the slope of the vector with the boundaries of the 16 sectors instead of
+      computing its angle. Vectors that are on or very close to a boundary
+      use [swipe_direction_atan2()] to obtain identical results. */
+  static int swipe_direction(float dx, float dy)
+  {
+    double x = Math.abs((double)dx);
+    double y = Math.abs((double)dy);
+    double e = (x + y) * SECTOR_EPSILON;
+    // Close to an axis
+    if (x <= e || y <= e)
+      return swipe_direction_atan2(dx, dy);
+    int k; // Sector within the quadrant, counter-clockwise from the x axis
+    double d = y - x * TAN_PI_8;
+    if (d < -e)
+      k = 0;
+    else if (d <= e)
+      return swipe_direction_atan2(dx, dy);
+    else if ((d = y - x) < -e)
+      k = 1;
+    else if (d <= e)
+      return swipe_direction_atan2(dx, dy);
+    else if ((d = y - x * TAN_3PI_8) < -e)
+      k = 2;
+    else if (d <= e)
+      return swipe_direction_atan2(dx, dy);
+    else
+      k = 3;
+    int quadrant = ((dx < 0.f) ? 1 : 0) | ((dy < 0.f) ? 2 : 0);
+    return QUADRANT_SECTOR_TO_DIRECTION[(quadrant << 2) | k];
+  }
+
+  static final double TAN_PI_8 = Math.tan(Math.PI / 8);
+  static final double TAN_3PI_8 = Math.tan(3 * Math.PI / 8);
+  /** Much larger than the rounding errors of [swipe_direction_atan2()]. */
+  static final double SECTOR_EPSILON = 1e-9;
+
+  /** Indexed by [quadrant << 2 | sector], see [swipe_direction()]. */
+  static final int[] QUADRANT_SECTOR_TO_DIRECTION = new int[]{
+    4, 5, 6, 7, // dx >= 0, dy >= 0
+    11, 10, 9, 8, // dx < 0, dy >= 0
+    3, 2, 1, 0, // dx >= 0, dy < 0
+    12, 13, 14, 15, // dx < 0, dy < 0
+  };
+
+  static int swipe_direction_atan2(float dx, float dy)
+  {
+    // See [getKeyAtDirection()] for the meaning. The starting point on the
+    // circle is the top direction.
+    double a = Math.atan2(dy, dx) + Math.PI;
+    // a is between 0 and 2pi, 0 is pointing to the left
+    // add 12 to align 0 to the top
+    return ((int)(a * 8 / Math.PI) + 12) % 16;
+  }
+
   /**
    * Get the key nearest to [direction] that is not key0. Take care
    * of applying [_handler.modifyKey] to the selected key in the same
@@ -260,14 +354,17 @@ public final class Pointers implements Handler.Callback
     return null;
   }
 
-  public void onTouchMove(float x, float y, int pointerId)
+  /** [time] is the time of the sample, in the [SystemClock.uptimeMillis()]
+      time base. Samples must be passed in order, including the historical
+      samples of a move event. */
+  public void onTouchMove(float x, float y, int pointerId, long time)
   {
     Pointer ptr = getPtr(pointerId);
     if (ptr == null)
       return;
     if (ptr.hasFlagsAny(FLAG_P_SLIDING))
     {
-      ptr.sliding.onTouchMove(ptr, x, y);
+      ptr.sliding.onTouchMove(ptr, x, y, time);
       return;
     }
 
@@ -287,20 +384,17 @@ public final class Pointers implements Handler.Callback
       ptr.gesture.moved_to_center();
       ptr.value = apply_gesture(ptr, ptr.gesture.get_gesture());
       ptr.flags = 0;
+      _detection_time = time;
 
     }
     else
     { // Pointer is on a quadrant.
-      // See [getKeyAtDirection()] for the meaning. The starting point on the
-      // circle is the top direction.
-      double a = Math.atan2(dy, dx) + Math.PI;
-      // a is between 0 and 2pi, 0 is pointing to the left
-      // add 12 to align 0 to the top
-      int direction = ((int)(a * 8 / Math.PI) + 12) % 16;
+      int direction = swipe_direction(dx, dy);
       if (ptr.gesture == null)
       { // Gesture starts
 
-        ptr.gesture = new Gesture(direction);
+        ptr.gesture = ptr.gesture_instance;
+        ptr.gesture.start(direction, _config.circle_sensitivity);
         KeyValue new_value = getNearestKeyAtDirection(ptr, direction);
         if (new_value != null)
         { // Pointer is swiping into a side key.
@@ -310,12 +404,14 @@ public final class Pointers implements Handler.Callback
           // Start sliding mode
           if (new_value.getKind() == KeyValue.Kind.Slider)
             startSliding(ptr, x, y, dx, dy, new_value);
+          _detection_time = time;
           _handler.onPointerDown(new_value, true);
         }
 
       }
       else if (ptr.gesture.changed_direction(direction))
       { // Gesture changed state
+        _detection_time = time;
         if (!ptr.gesture.is_in_progress())
         { // Gesture ended
           _handler.onPointerFlagsChanged(true);
@@ -323,7 +419,7 @@ public final class Pointers implements Handler.Callback
         else
         {
           ptr.value = apply_gesture(ptr, ptr.gesture.get_gesture());
-          restartLongPress(ptr);
+          startLongPress(ptr);
           ptr.flags = 0; // Special behaviors are ignored during a gesture.
           _handler.onPointerFlagsChanged(true); // Vibrate
         }
@@ -331,19 +427,59 @@ public final class Pointers implements Handler.Callback
     }
   }
 
+  /** Returns the time of the sample at which the last gesture or slider step
+      was detected since the previous call, or [-1]. */
+  public long take_detection_time()
+  {
+    long t = _detection_time;
+    _detection_time = -1;
+    return t;
+  }
+
   // Pointers management
 
   private Pointer getPtr(int pointerId)
   {
-    for (Pointer p : _ptrs)
-      if (p.pointerId == pointerId)
-        return p;
+    for (int i = 0; i < _n_ptrs; i++)
+      if (_ptrs[i].pointerId == pointerId)
+        return _ptrs[i];
     return null;
   }
 
+  /** Take a pointer from the pool and add it to the active pointers. Returns
+      [null] if the maximum number of pointers is reached. */
+  private Pointer addPtr(int pointerId, KeyboardData.Key key, KeyValue value,
+      float x, float y, Modifiers mods, int flags)
+  {
+    if (_n_ptrs >= MAX_POINTERS)
+      return null;
+    Pointer ptr = _free_ptrs[--_n_free_ptrs];
+    _free_ptrs[_n_free_ptrs] = null;
+    ptr.init(pointerId, key, value, x, y, mods, flags);
+    _ptrs[_n_ptrs++] = ptr;
+    return ptr;
+  }
+
+  /** The pointer is returned to the pool but its fields remain readable until
+      an other pointer is added. */
   private void removePtr(Pointer ptr)
   {
-    _ptrs.remove(ptr);
+    for (int i = 0; i < _n_ptrs; i++)
+      if (_ptrs[i] == ptr)
+      {
+        removePtrAt(i);
+        return;
+      }
+  }
+
+  private void removePtrAt(int i)
+  {
+    Pointer ptr = _ptrs[i];
+    stopLongPress(ptr);
+    _n_ptrs--;
+    System.arraycopy(_ptrs, i + 1, _ptrs, i, _n_ptrs - i);
+    _ptrs[_n_ptrs] = null;
+    _free_ptrs[_n_free_ptrs++] = ptr;
   }
 
   private Pointer getLatched(Pointer target)
@@ -355,21 +491,24 @@ public final class Pointers implements Handler.Callback
   {
     if (v == null)
       return null;
-    for (Pointer p : _ptrs)
+    for (int i = 0; i < _n_ptrs; i++)
+    {
+      Pointer p = _ptrs[i];
       if (p.key == k && p.hasFlagsAny(FLAG_P_LATCHED)
           && p.value != null && p.value.equals(v))
         return p;
+    }
     return null;
   }
 
   private void clearLatched()
   {
-    for (int i = _ptrs.size() - 1; i >= 0; i--)
+    for (int i = _n_ptrs - 1; i >= 0; i--)
     {
-      Pointer ptr = _ptrs.get(i);
+      Pointer ptr = _ptrs[i];
       // Latched and not locked, remove
       if (ptr.hasFlagsAny(FLAG_P_LATCHED) && (ptr.flags & FLAG_P_LOCKED) == 0)
-        _ptrs.remove(i);
+        removePtrAt(i);
       // Not latched but pressed, don't latch once released and stop long press.
       else if ((ptr.flags & FLAG_P_LATCHABLE) != 0)
         ptr.flags &= ~FLAG_P_LATCHABLE;
@@ -385,47 +524,37 @@ public final class Pointers implements Handler.Callback
 
   boolean isSliding()
   {
-    for (Pointer ptr : _ptrs)
-      if (ptr.hasFlagsAny(FLAG_P_SLIDING))
+    for (int i = 0; i < _n_ptrs; i++)
+      if (_ptrs[i].hasFlagsAny(FLAG_P_SLIDING))
         return true;
     return false;
   }
 
   // Key repeat
 
-  /** Message from [_longpress_handler]. */
+  /** Called by [_timers]. Timers are cancelled when a pointer is removed. */
   @Override
-  public boolean handleMessage(Message msg)
+  public void on_timer(int slot)
   {
-    for (Pointer ptr : _ptrs)
+    for (int i = 0; i < _n_ptrs; i++)
     {
-      if (ptr.timeoutWhat == msg.what)
+      if (_ptrs[i].timer == slot)
       {
-        handleLongPress(ptr);
-        return true;
+        handleLongPress(_ptrs[i]);
+        return;
       }
     }
-    return false;
   }
 
-  private static int uniqueTimeoutWhat = 0;
-
+  /** Also restart the timer if it's already running. */
   private void startLongPress(Pointer ptr)
   {
-    int what = (uniqueTimeoutWhat++);
-    ptr.timeoutWhat = what;
-    _longpress_handler.sendEmptyMessageDelayed(what, _config.longPressTimeout);
+    _timers.schedule(ptr.timer, _config.longPressTimeout);
   }
 
   private void stopLongPress(Pointer ptr)
   {
-    _longpress_handler.removeMessages(ptr.timeoutWhat);
-  }
-
-  private void restartLongPress(Pointer ptr)
-  {
-    stopLongPress(ptr);
-    startLongPress(ptr);
+    _timers.cancel(ptr.timer);
   }
 
   /** A pointer is long pressing. */
@@ -456,8 +585,7 @@ public final class Pointers implements Handler.Callback
     if (_config.keyrepeat_enabled)
     {
       _handler.onPointerHold(kv, ptr.modifiers);
-      _longpress_handler.sendEmptyMessageDelayed(ptr.timeoutWhat,
-          _config.longPressInterval);
+      _timers.schedule(ptr.timer, _config.longPressInterval);
     }
   }
 
@@ -472,7 +600,8 @@ public final class Pointers implements Handler.Callback
     int diry = dy < 0 ? -r : r;
     stopLongPress(ptr);
     ptr.flags |= FLAG_P_SLIDING;
-    ptr.sliding = new Sliding(x, y, dirx, diry, kv.getSlider());
+    ptr.sliding = ptr.sliding_instance;
+    ptr.sliding.start(x, y, dirx, diry, kv.getSlider());
   }
 
   /** Return the [FLAG_P_*] flags that correspond to pressing [kv]. */
@@ -529,19 +658,12 @@ public final class Pointers implements Handler.Callback
 
   // Pointers
 
-  Pointer make_pointer(int p, KeyboardData.Key k, KeyValue v, float x, float y,
-      Modifiers m)
-  {
-    int flags = (v == null) ? 0 : pointer_flags_of_kv(v);
-    return new Pointer(p, k, v, x, y, m, flags);
-  }
-
   private static final class Pointer
   {
     /** -1 when latched. */
     public int pointerId;
     /** The Key pressed by this Pointer */
-    public final KeyboardData.Key key;
+    public KeyboardData.Key key;
     /** Gesture state, see [Gesture]. [null] means the pointer has not moved out of the center region. */
     public Gesture gesture;
     /** Selected value with [modifiers] applied. */
@@ -552,12 +674,21 @@ public final class Pointers implements Handler.Callback
     public Modifiers modifiers;
     /** See [FLAG_P_*] flags. */
     public int flags;
-    /** Identify timeout messages. */
-    public int timeoutWhat;
+    /** Slot of the long press timer in [_timers]. */
+    public final int timer;
     /** [null] when not in sliding mode. */
     public Sliding sliding;
+    /** Reused by [gesture] and [sliding] when this pointer is reused. */
+    public final Gesture gesture_instance = new Gesture();
+    public final Sliding sliding_instance;
+
+    public Pointer(int timer_, Sliding s)
+    {
+      timer = timer_;
+      sliding_instance = s;
+    }
 
-    public Pointer(int p, KeyboardData.Key k, KeyValue v, float x, float y, Modifiers m, int f)
+    public void init(int p, KeyboardData.Key k, KeyValue v, float x, float y, Modifiers m, int f)
     {
       pointerId = p;
       key = k;
@@ -567,7 +698,6 @@ public final class Pointers implements Handler.Callback
       downY = y;
       modifiers = m;
       flags = f;
-      timeoutWhat = -1;
       sliding = null;
     }
 
@@ -586,8 +716,8 @@ public final class Pointers implements Handler.Callback
     /** Coordinate of the last move. */
     float last_x;
     float last_y;
-    /** [System.currentTimeMillis()] at the time of the last move. Equals to
-      [-1] when the sliding hasn't started yet. */
+    /** Time of the last move, as passed to [onTouchMove]. Equals to [-1] when
+        the sliding hasn't started yet. */
     long last_move_ms = -1;
     /** The property which is being slided. */
     KeyValue.Slider slider;
@@ -596,8 +726,13 @@ public final class Pointers implements Handler.Callback
     int direction_x;
     int direction_y;
 
-    public Sliding(float x, float y, int dirx, int diry, KeyValue.Slider s)
+    public Sliding() {}
+
+    public void start(float x, float y, int dirx, int diry, KeyValue.Slider s)
     {
+      d = 0.f;
+      speed = 0.5f;
+      last_move_ms = -1;
       last_x = x;
       last_y = y;
       slider = s;
@@ -613,7 +748,7 @@ public final class Pointers implements Handler.Callback
         that direction. */
     static final float SPEED_VERTICAL_MULT = 0.5f;
 
-    public void onTouchMove(Pointer ptr, float x, float y)
+    public void onTouchMove(Pointer ptr, float x, float y, long time)
     {
       // Start sliding only after the pointer has travelled an other distance.
       // This allows to trigger the slider movements only once with a short
@@ -623,17 +758,18 @@ public final class Pointers implements Handler.Callback
       {
         if (travelled < (_config.swipe_dist_px + _config.slide_step_px))
           return;
-        last_move_ms = System.currentTimeMillis();
+        last_move_ms = time;
       }
       d += ((x - last_x) * speed * direction_x
           + (y - last_y) * speed * SPEED_VERTICAL_MULT * direction_y)
         / _config.slide_step_px;
-      update_speed(travelled, x, y);
+      update_speed(travelled, x, y, time);
       // Send an event when [abs(d)] exceeds [1].
       int d_ = (int)d;
       if (d_ != 0)
       {
         d -= d_;
+        _detection_time = time;
         _handler.onPointerHold(KeyValue.sliderKey(slider, d_),
             ptr.modifiers);
       }
@@ -651,9 +787,8 @@ public final class Pointers implements Handler.Callback
     /** [speed] is computed from the elapsed time and distance traveled
         between two move events. Exponential smoothing is used to smooth out
         the noise. Sets [last_move_ms] and [last_pos]. */
-    void update_speed(float travelled, float x, float y)
+    void update_speed(float travelled, float x, float y, long now)
     {
-      long now = System.currentTimeMillis();
       float instant_speed = Math.min(SPEED_MAX,
           travelled / (float)(now - last_move_ms) + 1.f);
       speed = speed + (instant_speed - speed) * SPEED_SMOOTHING;
@@ -664,11 +799,14 @@ public final class Pointers implements Handler.Callback
   }
 
   /** Represent modifiers currently activated.
-      Sorted in the order they should be evaluated. */
+      Sorted in the order they should be evaluated.
+      Instances are interned, see [intern()]. */
   public static final class Modifiers
   {
     private final KeyValue[] _mods;
     private final int _size;
+    /** Cached result of [modifying_keys()]. */
+    private Modifiers _modifying = null;
 
     private Modifiers(KeyValue[] m, int s)
     {
@@ -695,9 +833,14 @@ public final class Pointers implements Handler.Callback
     /** Return a copy of this object with an extra modifier added. */
     public Modifiers with_extra_mod(KeyValue m)
     {
-      KeyValue[] newmods = Arrays.copyOf(_mods, _size + 1);
-      newmods[_size] = m;
-      return ofArray(newmods, newmods.length);
+      synchronized (Modifiers.class)
+      {
+        KeyValue[] newmods = (_size < _extra_mod_buf.length) ?
+          _extra_mod_buf : new KeyValue[_size + 1];
+        System.arraycopy(_mods, 0, newmods, 0, _size);
+        newmods[_size] = m;
+        return ofArray(newmods, _size + 1);
+      }
     }
 
     /** Returns the activated modifiers that are not in [m2]. */
@@ -706,12 +849,56 @@ public final class Pointers implements Handler.Callback
       return new ModifiersDiffIterator(this, m2);
     }
 
+    /** Returns the modifiers that can change the value of other keys. The
+        other kinds of keys are ignored by [KeyModifier.modify]. */
+    public Modifiers modifying_keys()
+    {
+      if (_modifying == null)
+        _modifying = compute_modifying_keys();
+      return _modifying;
+    }
+
+    private Modifiers compute_modifying_keys()
+    {
+      KeyValue[] mods = new KeyValue[_size];
+      int n = 0;
+      for (int i = 0; i < _size; i++)
+      {
+        switch (_mods[i].getKind())
+        {
+          case Modifier:
+          case Compose_pending:
+          case Hangul_initial:
+          case Hangul_medial:
+            mods[n++] = _mods[i];
+            break;
+        }
+      }
+      return (n == _size) ? this : intern(mods, n);
+    }
+
+    /** Only the first [_size] elements are significant. */
     @Override
-    public int hashCode() { return Arrays.hashCode(_mods); }
+    public int hashCode()
+    {
+      int h = 1;
+      for (int i = 0; i < _size; i++)
+        h = h * 31 + _mods[i].hashCode();
+      return h;
+    }
+
     @Override
     public boolean equals(Object obj)
     {
-      return Arrays.equals(_mods, ((Modifiers)obj)._mods);
+      if (!(obj instanceof Modifiers))
+        return false;
+      Modifiers m = (Modifiers)obj;
+      if (m._size != _size)
+        return false;
+      for (int i = 0; i < _size; i++)
+        if (!_mods[i].equals(m._mods[i]))
+          return false;
+      return true;
     }
 
     public static final Modifiers EMPTY =
@@ -735,7 +922,78 @@ public final class Pointers implements Handler.Callback
         }
         size = j;
       }
-      return new Modifiers(mods, size);
+      return intern(mods, size);
+    }
+
+    /** Canonical instances, looked up by [signature()]. Open addressing, the
+        table is emptied when it is half full. */
+    static final int INTERNED_CAPACITY = 256;
+    static final int INTERNED_SHIFT = 64 - 8;
+    static final long[] _interned_sigs = new long[INTERNED_CAPACITY];
+    static final Modifiers[] _interned = new Modifiers[INTERNED_CAPACITY];
+    static int _interned_count = 0;
+    /** Used by [with_extra_mod()]. */
+    static final KeyValue[] _extra_mod_buf = new KeyValue[MAX_POINTERS + 1];
+
+    /** Returns the canonical instance containing the first [size] elements of
+        [mods], which must be sorted and without duplicates. [mods] is copied
+        when a new instance is created. */
+    static synchronized Modifiers intern(KeyValue[] mods, int size)
+    {
+      if (size == 0)
+        return EMPTY;
+      long sig = signature(mods, size);
+      int i = slot(sig);
+      Modifiers m;
+      while ((m = _interned[i]) != null)
+      {
+        if (_interned_sigs[i] == sig && m.has_elements(mods, size))
+          return m;
+        i = (i + 1) % INTERNED_CAPACITY;
+      }
+      if (_interned_count >= INTERNED_CAPACITY / 2)
+      {
+        Arrays.fill(_interned, null);
+        _interned_count = 0;
+        i = slot(sig);
+      }
+      m = new Modifiers(Arrays.copyOf(mods, size), size);
+      _interned[i] = m;
+      _interned_sigs[i] = sig;
+      _interned_count++;
+      return m;
+    }
+
+    /** A bitset of the [Modifier] keys. Other kinds of keys are hashed into
+        the upper bits. */
+    static long signature(KeyValue[] mods, int size)
+    {
+      long bits = 0;
+      long others = 0;
+      for (int i = 0; i < size; i++)
+      {
+        KeyValue kv = mods[i];
+        if (kv.getKind() == KeyValue.Kind.Modifier)
+          bits |= 1L << kv.getModifier().ordinal();
+        else
+          others = others * 31 + kv.hashCode();
+      }
+      return bits ^ (others << 32);
+    }
+
+    static int slot(long sig)
+    {
+      return (int)((sig * 0x9E3779B97F4A7C15L) >>> INTERNED_SHIFT);
+    }
+
+    boolean has_elements(KeyValue[] mods, int size)
+    {
+      if (size != _size)
+        return false;
+      for (int i = 0; i < size; i++)
+        if (!_mods[i].equals(mods[i]))
+          return false;
+      return true;
     }
 
     /** Returns modifiers that are in [m1_] but not in [m2_]. */
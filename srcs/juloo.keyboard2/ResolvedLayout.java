@@ -0,0 +1,74 @@
+package juloo.keyboard2;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** The values of every keys of a layout after applying the modifiers, as
+    they are drawn. */
+public final class ResolvedLayout
+{
+  /** Indexed by row, key and position in the key. [null] for removed keys. */
+  private final KeyValue[][][] _keys;
+
+  private ResolvedLayout(KeyboardData kw, Pointers.Modifiers mods)
+  {
+    _keys = new KeyValue[kw.rows.size()][][];
+    for (int r = 0; r < _keys.length; r++)
+    {
+      KeyboardData.Row row = kw.rows.get(r);
+      KeyValue[][] row_keys = new KeyValue[row.keys.size()][];
+      for (int k = 0; k < row_keys.length; k++)
+      {
+        KeyValue[] values = row.keys.get(k).keys;
+        KeyValue[] resolved = new KeyValue[values.length];
+        for (int i = 0; i < values.length; i++)
+          resolved[i] = KeyModifier.modify(values[i], mods);
+        row_keys[k] = resolved;
+      }
+      _keys[r] = row_keys;
+    }
+  }
+
+  /** The value of the key at position [index] of the [key]th key of row
+      [row], or [null] if there is no value. */
+  public KeyValue get(int row, int key, int index)
+  {
+    return _keys[row][key][index];
+  }
+
+  /** The resolved layouts of a [KeyboardData], computed once for each set of
+      modifiers. Only the most recently used tables are kept. */
+  public static final class Cache
+  {
+    static final int MAX_SIZE = 8;
+
+    final KeyboardData _kw;
+    final LinkedHashMap<Pointers.Modifiers, ResolvedLayout> _tables =
+      new LinkedHashMap<Pointers.Modifiers, ResolvedLayout>(16, 0.75f, true)
+      {
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<Pointers.Modifiers, ResolvedLayout> e)
+        {
+          return size() > MAX_SIZE;
+        }
+      };
+
+    public Cache(KeyboardData kw)
+    {
+      _kw = kw;
+    }
+
+    public ResolvedLayout get(Pointers.Modifiers mods)
+    {
+      mods = mods.modifying_keys();
+      ResolvedLayout t = _tables.get(mods);
+      if (t == null)
+      {
+        t = new ResolvedLayout(_kw, mods);
+        _tables.put(mods, t);
+      }
+      return t;
+    }
+  }
+}
@@ -2,10 +2,15 @@ package juloo.keyboard2;
 
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.RectF;
 import android.graphics.Typeface;
 import android.util.AttributeSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class Theme
 {
@@ -95,12 +100,29 @@ public class Theme
     public final float margin_top;
     public final float margin_left;
     public final float row_height;
+    public final float main_label_size;
+    public final float sub_label_size;
     public final Paint indication_paint;
+    /** Vertical position of the indication's baseline, relative to the key. */
+    public final float indication_y_ratio;
+    public final float indication_y_offset;
 
     public final Key key;
     public final Key key_activated;
 
-    public Computed(Theme theme, Config config, float keyWidth, KeyboardData layout)
+    /** Indexed by [label_index()]. */
+    final Label[] _labels;
+
+    /** Release the bitmaps used to draw the keys. */
+    public void release()
+    {
+      key.release();
+      key_activated.release();
+    }
+
+    /** [width] is the width of the keyboard. */
+    public Computed(Theme theme, Config config, float keyWidth,
+        KeyboardData layout, int width)
     {
       // Rows height is proportional to the keyboard height, meaning it doesn't
       // change for layouts with more or less rows. 3.95 is the usual height of
@@ -118,8 +140,112 @@ public class Theme
       margin_left = horizontal_margin / 2;
       key = new Key(theme, config, keyWidth, false);
       key_activated = new Key(theme, config, keyWidth, true);
+      // Compute the size of labels based on the width or the height of keys.
+      // The margin around keys is taken into account. Keys normal aspect
+      // ratio is assumed to be 3/2 for a 10 columns layout. It's generally
+      // more, the width computation is useful when the keyboard is unusually
+      // high.
+      float labelBaseSize = Math.min(
+          row_height - vertical_margin,
+          (width / 10 - horizontal_margin) * 3/2
+          ) * config.characterSize;
+      main_label_size = labelBaseSize * config.labelTextSize;
+      sub_label_size = labelBaseSize * config.sublabelTextSize;
       indication_paint = init_label_paint(config, null);
       indication_paint.setColor(theme.subLabelColor);
+      indication_paint.setTextSize(sub_label_size);
+      indication_y_ratio = 4.f/5.f;
+      indication_y_offset =
+        -(indication_paint.ascent() + indication_paint.descent()) * 4/5;
+      int alpha_bits = (config.labelBrightness & 0xFF) << 24;
+      _labels = new Label[9 * 4];
+      for (int i = 0; i < 9; i++)
+        for (int font = 0; font < 2; font++)
+          for (int smaller = 0; smaller < 2; smaller++)
+            _labels[label_index(i, font == 1, smaller == 1)] =
+              new Label(config, i, font == 1, smaller == 1, alpha_bits,
+                  (i == 0) ? main_label_size : sub_label_size);
+    }
+
+    /** The geometry of a label at position [index] of a key. */
+    public Label label(int index, KeyValue kv)
+    {
+      return _labels[label_index(index,
+          kv.hasFlagsAny(KeyValue.FLAG_KEY_FONT),
+          kv.hasFlagsAny(KeyValue.FLAG_SMALLER_FONT))];
+    }
+
+    static int label_index(int index, boolean key_font, boolean smaller_font)
+    {
+      return index * 4 + (key_font ? 2 : 0) + (smaller_font ? 1 : 0);
+    }
+
+    /** Horizontal and vertical position of the 9 indexes. */
+    static final Paint.Align[] LABEL_POSITION_H = new Paint.Align[]{
+      Paint.Align.CENTER, Paint.Align.LEFT, Paint.Align.RIGHT, Paint.Align.LEFT,
+      Paint.Align.RIGHT, Paint.Align.LEFT, Paint.Align.RIGHT,
+      Paint.Align.CENTER, Paint.Align.CENTER
+    };
+
+    static final Vertical[] LABEL_POSITION_V = new Vertical[]{
+      Vertical.CENTER, Vertical.TOP, Vertical.TOP, Vertical.BOTTOM,
+      Vertical.BOTTOM, Vertical.CENTER, Vertical.CENTER, Vertical.TOP,
+      Vertical.BOTTOM
+    };
+
+    enum Vertical
+    {
+      TOP,
+      CENTER,
+      BOTTOM
+    }
+
+    /** A label at a given position in keys, with its text size and font. The
+        position of the baseline is [key_size * ratio + offset]. */
+    public static final class Label
+    {
+      public final float x_ratio;
+      public final float x_offset;
+      public final float y_ratio;
+      public final float y_offset;
+      /** The label of string keys is truncated to this length. */
+      public final int max_length;
+      final Paint _paint;
+      final int _alpha_bits;
+
+      Label(Config config, int index, boolean key_font, boolean smaller_font,
+          int alpha_bits, float text_size)
+      {
+        _paint = init_label_paint(config, key_font ? _key_font : null);
+        _paint.setTextSize(text_size * (smaller_font ? 0.75f : 1.f));
+        Paint.Align a = LABEL_POSITION_H[index];
+        _paint.setTextAlign(a);
+        _alpha_bits = alpha_bits;
+        float padding = config.keyPadding;
+        float ascent = _paint.ascent();
+        float descent = _paint.descent();
+        switch (a)
+        {
+          case LEFT: x_ratio = 0.f; x_offset = padding; break;
+          case RIGHT: x_ratio = 1.f; x_offset = -padding; break;
+          default: x_ratio = 0.5f; x_offset = 0.f; break;
+        }
+        switch (LABEL_POSITION_V[index])
+        {
+          case TOP: y_ratio = 0.f; y_offset = padding - ascent; break;
+          case BOTTOM: y_ratio = 1.f; y_offset = -padding - descent; break;
+          default: y_ratio = 0.5f; y_offset = -(ascent + descent) / 2f; break;
+        }
+        // Limit the label of string keys to 3 characters
+        max_length = (index == 0) ? Integer.MAX_VALUE : 3;
+      }
+
+      /** The paint is shared, only the color is changed. */
+      public Paint paint(int color)
+      {
+        _paint.setColor((color & 0x00FFFFFF) | _alpha_bits);
+        return _paint;
+      }
     }
 
     public static final class Key
@@ -131,11 +257,19 @@ public class Theme
       public final Paint border_bottom_paint;
       public final float border_width;
       public final float border_radius;
-      final Paint _label_paint;
-      final Paint _special_label_paint;
-      final Paint _sublabel_paint;
-      final Paint _special_sublabel_paint;
-      final int _label_alpha_bits;
+      /** The frame is rendered once for each key size into [_frames], keyed
+          by [frame_key()]. Only the most recently used sizes are kept. */
+      static final int MAX_FRAMES = 16;
+      final LinkedHashMap<Long, Bitmap> _frames =
+        new LinkedHashMap<Long, Bitmap>(16, 0.75f, true)
+        {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Long, Bitmap> e)
+          {
+            return size() > MAX_FRAMES;
+          }
+        };
+      final RectF _rect = new RectF();
 
       public Key(Theme theme, Config config, float keyWidth, boolean activated)
       {
@@ -155,28 +289,75 @@ public class Theme
         border_top_paint = init_border_paint(config, border_width, theme.keyBorderColorTop);
         border_right_paint = init_border_paint(config, border_width, theme.keyBorderColorRight);
         border_bottom_paint = init_border_paint(config, border_width, theme.keyBorderColorBottom);
-        _label_paint = init_label_paint(config, null);
-        _special_label_paint = init_label_paint(config, _key_font);
-        _sublabel_paint = init_label_paint(config, null);
-        _special_sublabel_paint = init_label_paint(config, _key_font);
-        _label_alpha_bits = (config.labelBrightness & 0xFF) << 24;
       }
 
-      public Paint label_paint(boolean special_font, int color, float text_size)
+      /** Draw borders and background of a key. The frame is drawn at a whole
+          pixel position to not blur the borders. */
+      public void draw_frame(Canvas canvas, float x, float y, float keyW,
+          float keyH)
+      {
+        x = Math.round(x);
+        y = Math.round(y);
+        if (border_width <= 0.f)
+        {
+          float r = border_radius;
+          _rect.set(x, y, x + keyW, y + keyH);
+          canvas.drawRoundRect(_rect, r, r, bg_paint);
+          return;
+        }
+        Long k = frame_key(keyW, keyH);
+        Bitmap frame = _frames.get(k);
+        if (frame == null)
+        {
+          frame = Bitmap.createBitmap((int)Math.ceil(keyW),
+              (int)Math.ceil(keyH), Bitmap.Config.ARGB_8888);
+          draw_frame_borders(new Canvas(frame), keyW, keyH);
+          _frames.put(k, frame);
+        }
+        canvas.drawBitmap(frame, x, y, null);
+      }
+
+      /** Release the frames. The bitmaps are not recycled, the last display
+          list drawn on a hardware canvas might still reference them. */
+      public void release()
+      {
+        _frames.clear();
+      }
+
+      static Long frame_key(float keyW, float keyH)
+      {
+        return ((long)Float.floatToIntBits(keyW) << 32)
+          | (Float.floatToIntBits(keyH) & 0xFFFFFFFFL);
+      }
+
+      /** Draw the background and the four borders of a frame at the origin.
+          The borders are drawn one side at a time even when they have the
+          same color, a single stroke would render the corners
+          differently. */
+      void draw_frame_borders(Canvas canvas, float keyW, float keyH)
       {
-        Paint p = special_font ? _special_label_paint : _label_paint;
-        p.setColor((color & 0x00FFFFFF) | _label_alpha_bits);
-        p.setTextSize(text_size);
-        return p;
+        float r = border_radius;
+        float w = border_width;
+        float padding = w / 2.f;
+        _rect.set(padding, padding, keyW - padding, keyH - padding);
+        canvas.drawRoundRect(_rect, r, r, bg_paint);
+        float overlap = r - r * 0.85f + w; // sin(45°)
+        draw_border(canvas, 0, 0, overlap, keyH, border_left_paint);
+        draw_border(canvas, keyW - overlap, 0, keyW, keyH, border_right_paint);
+        draw_border(canvas, 0, 0, keyW, overlap, border_top_paint);
+        draw_border(canvas, 0, keyH - overlap, keyW, keyH, border_bottom_paint);
       }
 
-      public Paint sublabel_paint(boolean special_font, int color, float text_size, Paint.Align align)
+      /** Clip to draw a border at a time. This allows to call [drawRoundRect]
+          several time with the same parameters but a different Paint. */
+      void draw_border(Canvas canvas, float clipl, float clipt, float clipr,
+          float clipb, Paint paint)
       {
-        Paint p = special_font ? _special_sublabel_paint : _sublabel_paint;
-        p.setColor((color & 0x00FFFFFF) | _label_alpha_bits);
-        p.setTextSize(text_size);
-        p.setTextAlign(align);
-        return p;
+        float r = border_radius;
+        canvas.save();
+        canvas.clipRect(clipl, clipt, clipr, clipb);
+        canvas.drawRoundRect(_rect, r, r, paint);
+        canvas.restore();
       }
     }
 
@@ -12,6 +12,8 @@ import android.view.WindowManager;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public final class Utils
 {
@@ -49,4 +51,16 @@ public final class Utils
       out.append(buff, 0, l);
     return out.toString();
   }
+
+  /** Run [r] on the background thread shared by the work done outside of
+      the UI thread, like loading the compose data and prewarming the
+      layouts. Tasks run one after the other, in the order they are
+      submitted. */
+  public static void run_in_background(Runnable r)
+  {
+    _background.execute(r);
+  }
+
+  private static final ExecutorService _background =
+    Executors.newSingleThreadExecutor();
 }
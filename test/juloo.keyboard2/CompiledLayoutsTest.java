@@ -0,0 +1,110 @@
+package juloo.keyboard2;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.List;
+import org.junit.Test;
+import org.kxml2.io.KXmlParser;
+import org.xmlpull.v1.XmlPullParser;
+import static org.junit.Assert.*;
+
+public class CompiledLayoutsTest
+{
+  public CompiledLayoutsTest() {}
+
+  static final String[] LAYOUT_DIRS = new String[]{ "srcs/layouts", "res/xml" };
+
+  /** Every compiled layout must be equal to the layout parsed from XML. */
+  @Test
+  public void round_trip() throws Exception
+  {
+    int n = 0;
+    long t_xml = 0, t_bin = 0;
+    for (String name : CompiledLayouts.names())
+    {
+      long start = System.nanoTime();
+      KeyboardData compiled = CompiledLayouts.load_keyboard(name);
+      KeyboardData.Row compiled_row =
+        (compiled == null) ? CompiledLayouts.load_row(name) : null;
+      t_bin += System.nanoTime() - start;
+      start = System.nanoTime();
+      XmlPullParser parser = new KXmlParser();
+      try (Reader inp = new InputStreamReader(
+            new FileInputStream(layout_file(name)), "UTF-8"))
+      {
+        parser.setInput(inp);
+        if (compiled != null)
+          assertKeyboardEquals(name, KeyboardData.parse_keyboard(parser),
+              compiled);
+        else
+        {
+          assertNotNull(name, compiled_row);
+          assertRowEquals(name, KeyboardData.parse_row(parser), compiled_row);
+        }
+      }
+      t_xml += System.nanoTime() - start;
+      n++;
+    }
+    assertTrue(n > 80);
+    System.out.println(String.format(
+          "Layouts, ms to load %d layouts: XML %.1f, compiled %.1f",
+          n, t_xml / 1e6, t_bin / 1e6));
+  }
+
+  static File layout_file(String name)
+  {
+    for (String dir : LAYOUT_DIRS)
+    {
+      File f = new File(dir, name + ".xml");
+      if (f.exists())
+        return f;
+    }
+    throw new AssertionError("Missing layout file for " + name);
+  }
+
+  static void assertKeyboardEquals(String name, KeyboardData exp,
+      KeyboardData act)
+  {
+    assertEquals(name, exp.keysWidth, act.keysWidth, 0.f);
+    assertEquals(name, exp.keysHeight, act.keysHeight, 0.f);
+    assertEquals(name, exp.script, act.script);
+    assertEquals(name, exp.numpad_script, act.numpad_script);
+    assertEquals(name, exp.name, act.name);
+    assertEquals(name, exp.bottom_row, act.bottom_row);
+    assertEquals(name, exp.embedded_number_row, act.embedded_number_row);
+    assertEquals(name, exp.locale_extra_keys, act.locale_extra_keys);
+    if (exp.modmap == null)
+      assertNull(name, act.modmap);
+    else
+      for (int m = 0; m < Modmap.M.values().length; m++)
+        assertEquals(name, exp.modmap._map[m], act.modmap._map[m]);
+    assertEquals(name, exp.rows.size(), act.rows.size());
+    for (int r = 0; r < exp.rows.size(); r++)
+      assertRowEquals(name + " row " + r, exp.rows.get(r), act.rows.get(r));
+  }
+
+  static void assertRowEquals(String name, KeyboardData.Row exp,
+      KeyboardData.Row act)
+  {
+    assertEquals(name, exp.height, act.height, 0.f);
+    assertEquals(name, exp.shift, act.shift, 0.f);
+    assertEquals(name, exp.keysWidth, act.keysWidth, 0.f);
+    List<KeyboardData.Key> ek = exp.keys, ak = act.keys;
+    assertEquals(name, ek.size(), ak.size());
+    for (int i = 0; i < ek.size(); i++)
+    {
+      KeyboardData.Key e = ek.get(i), a = ak.get(i);
+      String kname = name + " key " + i;
+      assertArrayEquals(kname, e.keys, a.keys);
+      for (int j = 0; j < e.keys.length; j++)
+        assertEquals(kname, e.keyHasFlag(j, KeyboardData.Key.F_LOC),
+            a.keyHasFlag(j, KeyboardData.Key.F_LOC));
+      assertEquals(kname, e.anticircle, a.anticircle);
+      assertEquals(kname, e.width, a.width, 0.f);
+      assertEquals(kname, e.shift, a.shift, 0.f);
+      assertEquals(kname, e.indication, a.indication);
+    }
+  }
+}
@@ -1,8 +1,26 @@
 package juloo.keyboard2;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import juloo.keyboard2.ComposeKey;
 import juloo.keyboard2.ComposeKeyData;
 import juloo.keyboard2.KeyValue;
+import org.junit.Ignore;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -50,6 +68,455 @@ public class ComposeKeyTest
     assertEquals(apply("𝕩", state), KeyValue.makeStringKey("𝕏"));
   }
 
+  /** Every sequence in the source files must resolve to its result, as
+      interpreted by [srcs/compose/compile.py]. Sequences that collide with an
+      other sequence are skipped, the one kept depends on the order of the
+      files. */
+  @Test
+  public void sourceSequences() throws Exception
+  {
+    int checked = 0;
+    for (File f : new File(SOURCE_DIR).listFiles())
+    {
+      String name = f.getName();
+      List<String[]> seqs;
+      if (f.isDirectory())
+        seqs = read_sequences_dir(f);
+      else if (name.endsWith(".json"))
+      {
+        seqs = read_sequences_json(f);
+        name = name.substring(0, name.length() - 5);
+      }
+      else
+        continue;
+      int entry = ComposeKeyData.class.getField(name).getInt(null);
+      for (String[] s : unambiguous(seqs))
+      {
+        assertEquals(name + ": " + s[0] + " = " + s[1], expected_result(s[1]),
+            ComposeKey.apply(entry, s[0]));
+        checked++;
+      }
+    }
+    assertTrue(checked > 4000);
+  }
+
+  /** The lookahead of every intermediate states must agree with [apply()]. */
+  @Test
+  public void lookahead() throws Exception
+  {
+    ComposeKey.Data data = ComposeKey.data();
+    char[] states = data.states;
+    char[] edges = data.edges;
+    for (int s = 0; s < states.length; s += ComposeCompiler.state_size(states, edges, s))
+    {
+      if (states[s] != 0)
+        continue;
+      ComposeKey.Lookahead l = ComposeKey.lookahead(data, s);
+      assertSame(l, ComposeKey.lookahead(data, s));
+      assertEquals(edges[s] - 1, l.chars.length);
+      for (int i = 0; i < l.chars.length; i++)
+      {
+        assertEquals(ComposeKey.apply(data, s, l.chars[i]), l.results[i]);
+        assertEquals(l.results[i], l.apply(l.chars[i]));
+      }
+      assertNull(l.apply('\0'));
+    }
+    // Completions of the state after [Compose '].
+    KeyValue pending = apply("'");
+    ComposeKey.Lookahead l = ComposeKey.lookahead(pending.getPendingCompose());
+    assertTrue(l.completions().contains(KeyValue.makeStringKey("é")));
+    assertTrue(l.completions().contains(KeyValue.makeStringKey("Á")));
+    assertFalse(l.completions().contains(KeyValue.makeStringKey("è")));
+    for (KeyValue k : l.completions())
+      assertNotEquals(KeyValue.Kind.Compose_pending, k.getKind());
+    // Not an intermediate state.
+    assertEquals(0, ComposeKey.lookahead(data, states.length + 10).chars.length);
+    assertEquals(0, ComposeKey.lookahead(data, -5).completions().size());
+  }
+
+  /** Compare the time to decode the binary data with the time to build the
+      arrays from string constants, as it was done in [ComposeKeyData]. The
+      results are printed and not checked. On a device, loading the string
+      constants also has to resolve them from the dex file. Not part of the
+      test suite, run manually. */
+  @Ignore("Benchmark")
+  @Test
+  public void loadBenchmark() throws Exception
+  {
+    InputStream inp =
+      ComposeKey.class.getResourceAsStream(ComposeKey.DATA_RESOURCE);
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    byte[] chunk = new byte[8192];
+    int n;
+    while ((n = inp.read(chunk)) > 0)
+      buf.write(chunk, 0, n);
+    inp.close();
+    byte[] bin = buf.toByteArray();
+    ComposeKey.Data data = ComposeKey.data();
+    String[] strings = new String[]{ new String(data.states),
+      new String(data.edges), new String(data.hash_disp),
+      new String(data.hash_slots) };
+    int rounds = 200;
+    long t_bin = 0, t_str = 0;
+    for (int warmup = 0; warmup < 2; warmup++)
+    {
+      long start = System.nanoTime();
+      for (int i = 0; i < rounds; i++)
+        ComposeKey.read_data(new ByteArrayInputStream(bin),
+            ComposeKeyData.compose);
+      t_bin = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (int i = 0; i < rounds; i++)
+        for (String str : strings)
+          str.toCharArray();
+      t_str = System.nanoTime() - start;
+    }
+    System.out.println(String.format(
+          "Compose data, us per load: binary (%d bytes) %.1f, strings %.1f",
+          bin.length, t_bin / 1000.0 / rounds, t_str / 1000.0 / rounds));
+  }
+
+  static final String USER_COMPOSE =
+    "# Comment\n" +
+    "<Multi_key> <e> <e> : \"ə\" schwa\n" +
+    "<Multi_key> <apostrophe> <e> : \"ê\"\n" +
+    "<Multi_key> <U0259> <U0259> : \"Ə\"\n" +
+    "<Multi_key> <schwa> <x> : \"ə̃\"\n" +
+    "<Multi_key> <v> <n> <c> : \"Unexpected\"\n" +
+    "<Multi_key> <unknown_keysym> : \"?\"\n" +
+    "<dead_acute> <e> : \"é\"\n";
+
+  @Test
+  public void userSequences() throws Exception
+  {
+    ComposeCompiler.Node user = ComposeCompiler.parse(USER_COMPOSE);
+    assertEquals(5, user.sequences);
+    assertEquals(1, user.dropped);
+    ComposeKey.Data builtin = ComposeKey.data();
+    ComposeKey.Data data = ComposeCompiler.compile(builtin, user);
+    // New sequences
+    assertEquals(KeyValue.makeCharKey('ə'), apply(data, "ee"));
+    assertEquals(KeyValue.makeCharKey('Ə'), apply(data, "əə"));
+    assertEquals(KeyValue.makeStringKey("ə̃"), apply(data, "əx"));
+    assertEquals(KeyValue.makeStringKey("Unexpected"), apply(data, "vnc"));
+    // Overrides a built-in sequence
+    assertEquals(KeyValue.makeStringKey("é"), apply(builtin, "'e"));
+    assertEquals(KeyValue.makeCharKey('ê'), apply(data, "'e"));
+    // Built-in sequences are still reachable, including from intermediate
+    // states that are merged.
+    assertEquals(KeyValue.makeStringKey("é"), apply(data, "e'"));
+    assertEquals(KeyValue.makeStringKey("Č"), apply(data, "Vc"));
+    assertEquals(KeyValue.makeStringKey("ӻ"), apply(data, ",г"));
+    assertEquals(apply(builtin, "'a"), apply(data, "'a"));
+    // Other entry states are unchanged.
+    assertEquals(KeyValue.getKeyByName("f1"),
+        ComposeKey.apply(data, ComposeKeyData.fn, "1"));
+    // Built-in states are kept at the same index.
+    for (int i = 0; i < builtin.states.length; i++)
+      assertEquals(builtin.states[i], data.states[i]);
+    assertNull(apply(builtin, "vnc"));
+  }
+
+  @Test
+  public void userSequencesCache() throws Exception
+  {
+    ComposeKey.Data builtin = ComposeKey.data();
+    File cache = File.createTempFile("compose", ".bin");
+    try
+    {
+      cache.delete();
+      ComposeKey.Data compiled =
+        ComposeCompiler.load_or_compile(builtin, USER_COMPOSE, cache);
+      assertTrue(cache.exists());
+      ComposeKey.Data cached =
+        ComposeCompiler.load_or_compile(builtin, USER_COMPOSE, cache);
+      assertArrayEquals(compiled.states, cached.states);
+      assertArrayEquals(compiled.edges, cached.edges);
+      assertArrayEquals(compiled.hash_disp, cached.hash_disp);
+      assertArrayEquals(compiled.hash_slots, cached.hash_slots);
+      assertEquals(compiled.compose_entry, cached.compose_entry);
+      assertEquals(KeyValue.makeCharKey('ə'), apply(cached, "ee"));
+      // A different source doesn't use the cache.
+      ComposeKey.Data other = ComposeCompiler.load_or_compile(builtin,
+          "<Multi_key> <e> <e> : \"x\"", cache);
+      assertEquals(KeyValue.makeCharKey('x'), apply(other, "ee"));
+    }
+    finally
+    {
+      cache.delete();
+    }
+  }
+
+  /** Time to parse and compile a large Compose file. The results are printed
+      and not checked. Not part of the test suite, run manually. */
+  @Ignore("Benchmark")
+  @Test
+  public void compileBenchmark() throws Exception
+  {
+    StringBuilder src = new StringBuilder();
+    int n = 0;
+    for (char a = 'a'; a <= 'z'; a++)
+      for (char b = 'a'; b <= 'z'; b++)
+        for (char c = '0'; c <= '7'; c++, n++)
+          src.append(String.format("<Multi_key> <%c> <%c> <%c> : \"%c%c%c\"\n",
+                a, b, c, Character.toUpperCase(a), b, c));
+    ComposeKey.Data builtin = ComposeKey.data();
+    ComposeKey.Data data = null;
+    long t_parse = 0, t_compile = 0;
+    for (int warmup = 0; warmup < 2; warmup++)
+    {
+      long start = System.nanoTime();
+      ComposeCompiler.Node user = ComposeCompiler.parse(src.toString());
+      t_parse = System.nanoTime() - start;
+      start = System.nanoTime();
+      data = ComposeCompiler.compile(builtin, user);
+      t_compile = System.nanoTime() - start;
+      assertEquals(n, user.sequences);
+    }
+    assertEquals(KeyValue.makeStringKey("Qz5"), apply(data, "qz5"));
+    System.out.println(String.format(
+          "Compose compiler, %d sequences: parse %.1fms, compile %.1fms, %.0f sequences/s",
+          n, t_parse / 1e6, t_compile / 1e6, n / ((t_parse + t_compile) / 1e9)));
+  }
+
+  static final String SOURCE_DIR = "srcs/compose";
+
+  /** The final state generated by [compile.py] for [r]. */
+  static KeyValue expected_result(String r)
+  {
+    if (r.codePointCount(0, r.length()) > 1 || r.codePointAt(0) > 32767)
+      return KeyValue.getKeyByName(r.startsWith(":") ? r.substring(1) : r);
+    return KeyValue.makeCharKey(r.charAt(0));
+  }
+
+  /** Remove the sequences that are duplicated with a different result or
+      that are the prefix of an other sequence. */
+  static List<String[]> unambiguous(List<String[]> seqs)
+  {
+    Map<String, String> results = new HashMap<String, String>();
+    Set<String> ambiguous = new HashSet<String>();
+    for (String[] s : seqs)
+    {
+      String prev = results.put(s[0], s[1]);
+      if (prev != null && !prev.equals(s[1]))
+        ambiguous.add(s[0]);
+    }
+    for (String seq : results.keySet())
+      for (int i = 1; i < seq.length(); i++)
+        if (results.containsKey(seq.substring(0, i)))
+        {
+          ambiguous.add(seq);
+          ambiguous.add(seq.substring(0, i));
+        }
+    List<String[]> r = new ArrayList<String[]>();
+    for (String[] s : seqs)
+      if (!ambiguous.contains(s[0]))
+        r.add(s);
+    return r;
+  }
+
+  static List<String> read_lines(File f) throws IOException
+  {
+    List<String> lines = new ArrayList<String>();
+    try (BufferedReader inp = new BufferedReader(new InputStreamReader(
+            new FileInputStream(f), "UTF-8")))
+    {
+      String line;
+      while ((line = inp.readLine()) != null)
+        lines.add(line);
+    }
+    return lines;
+  }
+
+  static List<String[]> read_sequences_dir(File dir) throws IOException
+  {
+    Map<String, String> names = new HashMap<String, String>();
+    Pattern keysym_re =
+      Pattern.compile("^#define XK_(\\S+)\\s+\\S+\\s*/\\*.U\\+([0-9a-fA-F]+)\\s.*");
+    for (String line : read_lines(new File(dir, "keysymdef.h")))
+    {
+      Matcher m = keysym_re.matcher(line);
+      if (m.matches())
+        names.put(m.group(1),
+            new String(Character.toChars(Integer.parseInt(m.group(2), 16))));
+    }
+    List<String[]> seqs = new ArrayList<String[]>();
+    for (File f : dir.listFiles())
+    {
+      if (f.getName().endsWith(".json"))
+        seqs.addAll(read_sequences_json(f));
+      else if (f.getName().endsWith(".pre"))
+        seqs.addAll(read_sequences_xkb(f, names));
+    }
+    return seqs;
+  }
+
+  static final Pattern XKB_LINE_RE = Pattern.compile(
+      "((?:\\s*<[^>]+>)+)\\s*:\\s*\"((?:[^\"\\\\]+|\\\\.)+)\"\\s*(\\S+)?\\s*(?:#.+)?");
+  static final Pattern XKB_CHAR_RE =
+    Pattern.compile("\\s*<(?:U([a-fA-F0-9]{4,6})|([^>]+))>");
+
+  /** Sequences starting with [<Multi_key>] in a [Compose.pre] file. */
+  static List<String[]> read_sequences_xkb(File f, Map<String, String> names)
+    throws IOException
+  {
+    List<String> lines = read_lines(f);
+    names = new HashMap<String, String>(names);
+    for (String line : lines)
+    {
+      Matcher m = XKB_LINE_RE.matcher(line);
+      if (m.matches() && m.group(3) != null)
+        names.put(m.group(3), xkb_result(m.group(2)));
+    }
+    List<String[]> seqs = new ArrayList<String[]>();
+    String prefix = "<Multi_key>";
+    for (String line : lines)
+    {
+      if (!line.startsWith(prefix))
+        continue;
+      Matcher m = XKB_LINE_RE.matcher(line.substring(prefix.length()));
+      if (!m.matches())
+        continue;
+      StringBuilder seq = new StringBuilder();
+      Matcher c = XKB_CHAR_RE.matcher(m.group(1));
+      while (c.find())
+      {
+        String s;
+        if (c.group(1) != null)
+          s = new String(Character.toChars(Integer.parseInt(c.group(1), 16)));
+        else if (c.group(2).length() == 1)
+          s = c.group(2);
+        else
+          s = names.get(c.group(2));
+        if (s == null || s.length() != 1)
+        {
+          seq = null; // Dropped by [compile.py]
+          break;
+        }
+        seq.append(s);
+      }
+      if (seq != null)
+        seqs.add(new String[]{ seq.toString(), xkb_result(m.group(2)) });
+    }
+    return seqs;
+  }
+
+  static String xkb_result(String r)
+  {
+    return (r.length() == 2 && r.charAt(0) == '\\') ? r.substring(1) : r;
+  }
+
+  static List<String[]> read_sequences_json(File f) throws IOException
+  {
+    StringBuilder src = new StringBuilder();
+    for (String line : read_lines(f))
+    {
+      int comment = line.indexOf("//");
+      src.append(comment >= 0 ? line.substring(0, comment) : line).append('\n');
+    }
+    List<String[]> seqs = new ArrayList<String[]>();
+    json_sequences(new Json(src.toString()).value(), "", seqs);
+    return seqs;
+  }
+
+  static void json_sequences(Object tree, String prefix, List<String[]> dst)
+  {
+    for (Map.Entry<?, ?> e : ((Map<?, ?>)tree).entrySet())
+    {
+      String seq = prefix + e.getKey();
+      if (e.getValue() instanceof String)
+        dst.add(new String[]{ seq, (String)e.getValue() });
+      else
+        json_sequences(e.getValue(), seq, dst);
+    }
+  }
+
+  /** Parse the subset of JSON used by the sequence files: objects and
+      strings. */
+  static final class Json
+  {
+    final String s;
+    int i = 0;
+
+    Json(String s_) { s = s_; }
+
+    Object value()
+    {
+      skip_spaces();
+      return (s.charAt(i) == '{') ? object() : string();
+    }
+
+    Map<String, Object> object()
+    {
+      Map<String, Object> obj = new LinkedHashMap<String, Object>();
+      expect('{');
+      skip_spaces();
+      if (s.charAt(i) == '}')
+      {
+        i++;
+        return obj;
+      }
+      while (true)
+      {
+        skip_spaces();
+        String key = string();
+        skip_spaces();
+        expect(':');
+        obj.put(key, value());
+        skip_spaces();
+        if (s.charAt(i++) == '}')
+          return obj;
+        assertEquals(',', s.charAt(i - 1));
+      }
+    }
+
+    String string()
+    {
+      expect('"');
+      StringBuilder b = new StringBuilder();
+      char c;
+      while ((c = s.charAt(i++)) != '"')
+      {
+        if (c != '\\')
+        {
+          b.append(c);
+          continue;
+        }
+        c = s.charAt(i++);
+        switch (c)
+        {
+          case 'n': b.append('\n'); break;
+          case 't': b.append('\t'); break;
+          case 'r': b.append('\r'); break;
+          case 'b': b.append('\b'); break;
+          case 'f': b.append('\f'); break;
+          case 'u':
+            b.append((char)Integer.parseInt(s.substring(i, i + 4), 16));
+            i += 4;
+            break;
+          default: b.append(c); break;
+        }
+      }
+      return b.toString();
+    }
+
+    void expect(char c)
+    {
+      assertEquals(c, s.charAt(i++));
+    }
+
+    void skip_spaces()
+    {
+      while (Character.isWhitespace(s.charAt(i)))
+        i++;
+    }
+  }
+
+  KeyValue apply(ComposeKey.Data data, String seq)
+  {
+    return ComposeKey.apply(data, ComposeKeyData.compose, seq);
+  }
+
   KeyValue apply(String seq)
   {
     return ComposeKey.apply(ComposeKeyData.compose, seq);
@@ -0,0 +1,154 @@
+package juloo.keyboard2;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class HangulTest
+{
+  public HangulTest() {}
+
+  /** Every syllable, typed with the initial, medial and final keys. */
+  @Test
+  public void compose_all_syllables()
+  {
+    int n = 0;
+    for (int l = 0; l < Hangul.N_INITIALS; l++)
+    {
+      KeyValue initial = key(Hangul.initial_jamo(l));
+      assertEquals(KeyValue.Kind.Hangul_initial, initial.getKind());
+      for (int v = 0; v < Hangul.N_MEDIALS; v++)
+      {
+        KeyValue medial = KeyModifier.modify(key(Hangul.medial_jamo(v)), initial);
+        assertEquals(KeyValue.Kind.Hangul_medial, medial.getKind());
+        assertEquals(Hangul.syllable(l, v, 0), medial.getHangulPrecomposed());
+        // Compound medials can also be typed as two vowels.
+        int parent = Hangul.MEDIAL_PARENT[v];
+        if (parent >= 0)
+        {
+          KeyValue first = KeyModifier.modify(key(Hangul.medial_jamo(parent)), initial);
+          char second = compound_half(Hangul.COMPOUND_MEDIALS, Hangul.medial_jamo(v));
+          assertEquals(medial, KeyModifier.modify(key(second), first));
+        }
+        for (int t = 0; t < Hangul.N_FINALS; t++)
+        {
+          KeyValue k = (t == 0) ? key(' ') : key(Hangul.final_jamo(t));
+          KeyValue s = KeyModifier.modify(k, medial);
+          assertEquals(KeyValue.Kind.Char, s.getKind());
+          assertEquals(Hangul.syllable(l, v, t), s.getChar());
+          n++;
+        }
+      }
+    }
+    assertEquals(11172, n);
+  }
+
+  /** Decomposition and backspace of every syllable. */
+  @Test
+  public void decompose_all_syllables()
+  {
+    int n = 0;
+    for (char s = 0xAC00; s <= 0xD7A3; s++, n++)
+    {
+      assertTrue(Hangul.is_syllable(s));
+      int l = Hangul.initial_of(s);
+      int v = Hangul.medial_of(s);
+      int t = Hangul.final_of(s);
+      assertEquals(s, Hangul.syllable(l, v, t));
+      assertEquals(l, Hangul.initial_index(Hangul.initial_jamo(l)));
+      assertEquals(v, Hangul.medial_index(Hangul.medial_jamo(v)));
+      char b = Hangul.backspace(s);
+      if (t != 0)
+      {
+        assertEquals(t, Hangul.final_index(Hangul.final_jamo(t)));
+        int first = Hangul.final_of(b);
+        assertEquals(Hangul.syllable(l, v, first), b);
+        if (first != 0) // Compound final
+        {
+          char second = compound_half(Hangul.COMPOUND_FINALS, Hangul.final_jamo(t));
+          assertEquals(t, Hangul.combine_final(first, second));
+        }
+      }
+      else if (Hangul.MEDIAL_PARENT[v] >= 0)
+      {
+        int first = Hangul.MEDIAL_PARENT[v];
+        assertEquals(Hangul.syllable(l, first, 0), b);
+        char second = compound_half(Hangul.COMPOUND_MEDIALS, Hangul.medial_jamo(v));
+        assertEquals(v, Hangul.combine_medial(first, second));
+      }
+      else
+        assertEquals(Hangul.initial_jamo(l), b);
+    }
+    assertEquals(Hangul.N_SYLLABLES, n);
+    assertFalse(Hangul.is_syllable((char)0xD7A4));
+    assertEquals(0, Hangul.backspace('a'));
+    assertEquals('각', Hangul.backspace('갃'));
+    assertEquals('가', Hangul.backspace('각'));
+    assertEquals('ㄱ', Hangul.backspace('가'));
+    assertEquals('고', Hangul.backspace('과'));
+  }
+
+  /** Consonant, vowel and consonant typed with the keys followed by a
+      consonant merged into the final. */
+  @Test
+  public void compound_finals()
+  {
+    assertEquals('닭', type_syllable('ㄷ', 'ㅏ', 'ㄹ', 'ㄱ'));
+    assertEquals('없', type_syllable('ㅇ', 'ㅓ', 'ㅂ', 'ㅅ'));
+    assertEquals('앉', type_syllable('ㅇ', 'ㅏ', 'ㄴ', 'ㅈ'));
+    assertEquals('삶', type_syllable('ㅅ', 'ㅏ', 'ㄹ', 'ㅁ'));
+    int n = 0;
+    for (char s = 0xAC00; s <= 0xD7A3; s++)
+      for (char c = 'ㄱ'; c <= 'ㅎ'; c++)
+      {
+        char m = Hangul.add_final(s, c);
+        int t = Hangul.combine_final(Hangul.final_of(s), c);
+        if (t < 0)
+        {
+          assertEquals(0, m);
+          continue;
+        }
+        assertEquals(Hangul.syllable(Hangul.initial_of(s), Hangul.medial_of(s), t), m);
+        assertEquals(s, Hangul.backspace(m));
+        n++;
+      }
+    // Each of the 11 compound finals, for every initial and medial.
+    assertEquals(11 * Hangul.N_INITIALS * Hangul.N_MEDIALS, n);
+    assertEquals(0, Hangul.add_final('가', 'ㄱ'));
+    assertEquals(0, Hangul.add_final('ㄱ', 'ㅅ'));
+  }
+
+  /** Type [l], [v] and [t] then merge [c] into the final. */
+  static char type_syllable(char l, char v, char t, char c)
+  {
+    KeyValue medial = KeyModifier.modify(key(v), key(l));
+    char s = KeyModifier.modify(key(t), medial).getChar();
+    return Hangul.add_final(s, c);
+  }
+
+  @Test
+  public void uncomposable()
+  {
+    assertEquals(-1, Hangul.final_index('ㄸ'));
+    assertEquals(-1, Hangul.initial_index('ㄳ'));
+    assertEquals(-1, Hangul.medial_index('ㄱ'));
+    assertEquals(-1, Hangul.combine_final(Hangul.final_index('ㄱ'), 'ㄱ'));
+    assertEquals(-1, Hangul.combine_medial(Hangul.medial_index('ㅏ'), 'ㅏ'));
+    KeyValue medial = KeyModifier.modify(key('ㅏ'), key('ㄱ'));
+    assertTrue(KeyModifier.modify(key('ㅏ'), medial).hasFlagsAny(KeyValue.FLAG_GREYED));
+    assertTrue(KeyModifier.modify(key('ㄸ'), medial).hasFlagsAny(KeyValue.FLAG_GREYED));
+  }
+
+  static KeyValue key(char c)
+  {
+    return KeyValue.getKeyByName(String.valueOf(c));
+  }
+
+  /** The second half of [compound] in one of the [COMPOUND_*] tables. */
+  static char compound_half(String table, char compound)
+  {
+    for (int i = 0; i < table.length(); i += 3)
+      if (table.charAt(i) == compound)
+        return table.charAt(i + 2);
+    throw new AssertionError("Not a compound: " + compound);
+  }
+}
@@ -0,0 +1,198 @@
+package juloo.keyboard2;
+
+import android.os.Handler;
+import android.view.inputmethod.InputConnection;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class KeyEventHandlerTest
+{
+  public KeyEventHandlerTest() {}
+
+  @Test
+  public void hangul_final_then_vowel()
+  {
+    Keyboard kb = new Keyboard();
+    kb.type("ㄷㅏㄹ");
+    assertEquals("달", kb.ed.text.toString());
+    kb.tap(key('ㄱ'));
+    assertEquals("닭", kb.ed.text.toString());
+    kb.tap(key('ㅏ'));
+    assertEquals("달", kb.ed.text.toString());
+    kb.tap(KeyValue.getKeyByName("space"));
+    assertEquals("달가", kb.ed.text.toString());
+  }
+
+  @Test
+  public void hangul_final_then_other_key()
+  {
+    Keyboard kb = new Keyboard();
+    kb.type("ㄷㅏㄹㄱ.");
+    assertEquals("닭.", kb.ed.text.toString());
+    kb = new Keyboard();
+    kb.type("ㄷㅏㄹㄱ");
+    kb.tap(KeyValue.getKeyByName("space"));
+    assertEquals("닭 ", kb.ed.text.toString());
+    // Typed in letter form.
+    kb = new Keyboard();
+    kb.type("ㄷㅏㄹㄱㄱ");
+    assertEquals("달ㄱ", kb.ed.text.toString());
+  }
+
+  @Test
+  public void hangul_final_then_backspace()
+  {
+    Keyboard kb = new Keyboard();
+    kb.type("ㄷㅏㄹㄱ");
+    kb.tap(KeyValue.getKeyByName("backspace"));
+    assertEquals("달", kb.ed.text.toString());
+    kb.tap(KeyValue.getKeyByName("backspace"));
+    assertEquals("다", kb.ed.text.toString());
+  }
+
+  @Test
+  public void hangul_final_cursor_moved()
+  {
+    Keyboard kb = new Keyboard();
+    kb.type("ㄷㅏㄹ");
+    kb.ed.cursor = 0;
+    kb.type("ㄱ");
+    assertEquals("달", kb.ed.text.toString());
+    kb.type("ㅏ");
+    kb.tap(KeyValue.getKeyByName("space"));
+    assertEquals("가달", kb.ed.text.toString());
+    // Moved after the merge, the merge is not undone.
+    kb = new Keyboard();
+    kb.type("ㄷㅏㄹㄱ");
+    kb.ed.cursor = 0;
+    kb.type("ㅏ");
+    kb.tap(KeyValue.getKeyByName("space"));
+    assertEquals("가닭", kb.ed.text.toString());
+  }
+
+  @Test
+  public void hangul_final_cancelled()
+  {
+    Keyboard kb = new Keyboard();
+    kb.type("ㄷㅏㄹ");
+    kb.handler.key_down(key('ㄱ'), false);
+    assertEquals("닭", kb.ed.text.toString());
+    kb.cancel();
+    assertEquals("달", kb.ed.text.toString());
+    // Swiped to an other key.
+    kb.type("ㄱ");
+    assertEquals("닭", kb.ed.text.toString());
+    kb.handler.key_down(KeyValue.getKeyByName("."), true);
+    assertEquals("달", kb.ed.text.toString());
+  }
+
+  static KeyValue key(char c)
+  {
+    return KeyValue.getKeyByName(String.valueOf(c));
+  }
+
+  /** Send the key events in the same order as [Pointers]. Hangul initials
+      and medials are latched until the next key. */
+  static final class Keyboard implements KeyEventHandler.IReceiver
+  {
+    final Editor ed = new Editor();
+    final KeyEventHandler handler = new KeyEventHandler(this);
+    final InputConnection conn = (InputConnection)Proxy.newProxyInstance(
+        InputConnection.class.getClassLoader(),
+        new Class<?>[]{ InputConnection.class }, ed);
+    KeyValue latched = null;
+
+    void type(String keys)
+    {
+      for (int i = 0; i < keys.length(); i++)
+        tap(key(keys.charAt(i)));
+    }
+
+    void tap(KeyValue k)
+    {
+      Pointers.Modifiers mods = mods(latched);
+      KeyValue v = KeyModifier.modify(k, mods);
+      handler.mods_changed(mods(latched, v));
+      handler.key_down(v, false);
+      switch (v.getKind())
+      {
+        case Hangul_initial:
+        case Hangul_medial:
+          if (!v.hasFlagsAny(KeyValue.FLAG_GREYED))
+          {
+            latched = v;
+            handler.mods_changed(mods(latched));
+            return;
+          }
+      }
+      latched = null;
+      handler.key_up(v, mods);
+      handler.mods_changed(mods());
+    }
+
+    /** The pointers are cancelled. */
+    void cancel()
+    {
+      latched = null;
+      handler.mods_changed(mods());
+    }
+
+    static Pointers.Modifiers mods(KeyValue... ks)
+    {
+      KeyValue[] m = new KeyValue[ks.length];
+      int n = 0;
+      for (KeyValue k : ks)
+        if (k != null)
+          m[n++] = k;
+      return Pointers.Modifiers.ofArray(m, n);
+    }
+
+    public void handle_event_key(KeyValue.Event ev) {}
+    public void set_shift_state(boolean state, boolean lock) {}
+    public void set_compose_pending(boolean pending) {}
+    public void selection_state_changed(boolean selection_is_ongoing) {}
+    public InputConnection getCurrentInputConnection() { return conn; }
+    public Handler getHandler() { return new Handler(); }
+  }
+
+  /** Implements the methods of [InputConnection] used by [KeyEventHandler]
+      on a text buffer. */
+  static final class Editor implements InvocationHandler
+  {
+    final StringBuilder text = new StringBuilder();
+    int cursor = 0;
+
+    public Object invoke(Object proxy, Method m, Object[] args)
+    {
+      switch (m.getName())
+      {
+        case "getTextBeforeCursor":
+          return text.substring(Math.max(0, cursor - (Integer)args[0]), cursor);
+        case "getTextAfterCursor":
+          return text.substring(cursor,
+              Math.min(text.length(), cursor + (Integer)args[0]));
+        case "commitText":
+          CharSequence s = (CharSequence)args[0];
+          text.insert(cursor, s);
+          cursor += s.length();
+          return true;
+        case "deleteSurroundingText":
+          int before = (Integer)args[0];
+          int after = (Integer)args[1];
+          text.delete(cursor, cursor + after);
+          text.delete(cursor - before, cursor);
+          cursor -= before;
+          return true;
+      }
+      Class<?> r = m.getReturnType();
+      if (r == boolean.class)
+        return false;
+      if (r == int.class)
+        return 0;
+      return null;
+    }
+  }
+}
@@ -0,0 +1,207 @@
+package juloo.keyboard2;
+
+import java.util.Arrays;
+import org.junit.Ignore;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class KeyModifierTest
+{
+  public KeyModifierTest() {}
+
+  static final KeyValue.Modifier[] MODIFIERS = new KeyValue.Modifier[]{
+    KeyValue.Modifier.SHIFT, KeyValue.Modifier.FN, KeyValue.Modifier.CTRL,
+    KeyValue.Modifier.GRAVE, KeyValue.Modifier.AIGU, KeyValue.Modifier.TREMA,
+    KeyValue.Modifier.GESTURE, KeyValue.Modifier.SELECTION_MODE
+  };
+
+  static final String[] KEY_NAMES = new String[]{
+    "a", "e", "i", "o", "u", "c", "n", "z", "A", "1", "9", " ", ",", "ß",
+    "é", "ж", "abc", "tab", "esc", "backspace", "delete", "left", "right",
+    "up", "down", "page_up", "home", "shift", "ctrl", "switch_numeric",
+    "cursor_left", "undo", "f11_placeholder", "change_method"
+  };
+
+  static KeyValue[] keys()
+  {
+    KeyValue[] ks = new KeyValue[KEY_NAMES.length];
+    for (int i = 0; i < ks.length; i++)
+      ks[i] = KeyValue.getKeyByName(KEY_NAMES[i]);
+    return ks;
+  }
+
+  @Test
+  public void memo()
+  {
+    KeyModifier.set_modmap(null); // Don't use the table of a layout
+    KeyModifier.clear_memo();
+    KeyValue[] ks = keys();
+    for (KeyValue.Modifier mod : MODIFIERS)
+      for (KeyValue k : ks)
+      {
+        KeyValue expected = KeyModifier.modify_uncached(k, mod);
+        int hits = KeyModifier.memo_hits;
+        int misses = KeyModifier.memo_misses;
+        KeyValue r = KeyModifier.modify(k, mod);
+        assertEquals(expected, r);
+        assertEquals(misses + 1, KeyModifier.memo_misses);
+        assertTrue(KeyModifier.is_memoized(k, mod));
+        assertSame(r, KeyModifier.modify(k, mod));
+        assertEquals(hits + 1, KeyModifier.memo_hits);
+        assertEquals(misses + 1, KeyModifier.memo_misses);
+      }
+  }
+
+  @Test
+  public void memo_invalidated_by_modmap()
+  {
+    KeyValue a = KeyValue.getKeyByName("a");
+    assertEquals(KeyValue.getKeyByName("A"),
+        KeyModifier.modify(a, KeyValue.Modifier.SHIFT));
+    Modmap mm = new Modmap();
+    mm.add(Modmap.M.Shift, a, KeyValue.getKeyByName("b"));
+    KeyModifier.set_modmap(mm);
+    assertEquals(KeyValue.getKeyByName("b"),
+        KeyModifier.modify(a, KeyValue.Modifier.SHIFT));
+    KeyModifier.set_modmap(null);
+    assertEquals(KeyValue.getKeyByName("A"),
+        KeyModifier.modify(a, KeyValue.Modifier.SHIFT));
+  }
+
+  @Test
+  public void layout_table()
+  {
+    KeyboardData kw = layout(
+        PointersTest.key("a", "shift", "accent_grave", "1", "e"),
+        PointersTest.key("tab", "fn", "backspace"));
+    KeyModifier.set_layout(kw);
+    ModifierTable t = kw.modifier_table;
+    KeyValue a = KeyValue.getKeyByName("a");
+    KeyValue.Modifier[] in_table = new KeyValue.Modifier[]{
+      KeyValue.Modifier.SHIFT, KeyValue.Modifier.GRAVE, KeyValue.Modifier.FN,
+      KeyValue.Modifier.GESTURE };
+    for (String name : new String[]{ "a", "1", "e", "tab", "backspace" })
+    {
+      KeyValue k = KeyValue.getKeyByName(name);
+      for (KeyValue.Modifier mod : in_table)
+      {
+        assertTrue(t.contains(k, mod));
+        assertEquals(KeyModifier.modify_uncached(k, mod), t.modify(k, mod));
+        assertEquals(KeyModifier.modify_uncached(k, mod),
+            KeyModifier.modify(k, mod));
+      }
+    }
+    assertFalse(t.contains(a, KeyValue.Modifier.CTRL));
+    assertFalse(t.contains(KeyValue.getKeyByName("z"), KeyValue.Modifier.SHIFT));
+    assertSame(kw.modifier_table, t);
+    KeyModifier.set_modmap(null);
+  }
+
+  /** Results computed with the previous compose data are dropped when the
+      user's sequences change. */
+  @Test
+  public void compose_data_changed() throws Exception
+  {
+    ComposeKey.Data builtin = ComposeKey.data();
+    ComposeKey.Data user = ComposeCompiler.compile(builtin,
+        ComposeCompiler.parse("<Multi_key> <v> <n> <c> : \"Unexpected\"\n"));
+    KeyboardData kw = layout(PointersTest.key("a", "shift", "accent_grave"));
+    KeyValue a = KeyValue.getKeyByName("a");
+    KeyValue e = KeyValue.getKeyByName("e");
+    KeyModifier.set_layout(kw);
+    ModifierTable t = kw.modifier_table;
+    KeyModifier.modify(e, KeyValue.Modifier.GRAVE);
+    assertTrue(KeyModifier.is_memoized(e, KeyValue.Modifier.GRAVE));
+    assertNull(compose("vnc"));
+    try
+    {
+      ComposeKey.set_data(user);
+      assertFalse(KeyModifier.is_memoized(e, KeyValue.Modifier.GRAVE));
+      assertEquals(KeyValue.makeStringKey("Unexpected"), compose("vnc"));
+      KeyModifier.set_layout(kw);
+      assertNotSame(t, kw.modifier_table);
+      assertSame(user, kw.modifier_table.compose_data);
+      assertEquals(KeyValue.getKeyByName("A"),
+          KeyModifier.modify(a, KeyValue.Modifier.SHIFT));
+    }
+    finally
+    {
+      ComposeKey.set_data(builtin);
+      KeyModifier.set_modmap(null);
+    }
+    assertNull(compose("vnc"));
+  }
+
+  /** Type [seq] after the compose key. */
+  static KeyValue compose(String seq)
+  {
+    KeyValue r = KeyValue.getKeyByName("compose");
+    for (int i = 0; i < seq.length() && r != null; i++)
+    {
+      if (r.getKind() != KeyValue.Kind.Compose_pending)
+        return null;
+      r = KeyModifier.modify(KeyValue.makeCharKey(seq.charAt(i)), r);
+    }
+    return r;
+  }
+
+  static KeyboardData layout(KeyboardData.Key... keys)
+  {
+    KeyboardData.Row row =
+      new KeyboardData.Row(Arrays.asList(keys), 1.f, 0.f);
+    return new KeyboardData(Arrays.asList(row), row.keysWidth,
+        null, null, null, "test", false, false, false);
+  }
+
+  /** Compare the time spent in the cached and uncached paths and report the
+      hit rate of the memo. The results are printed and not checked. Not part
+      of the test suite, run manually. */
+  @Ignore("Benchmark")
+  @Test
+  public void benchmark()
+  {
+    KeyModifier.set_modmap(null); // Don't use the table of a layout
+    KeyValue[] ks = keys();
+    int rounds = 2000;
+    StringBuilder out = new StringBuilder("KeyModifier.modify, ns per call:\n");
+    for (KeyValue.Modifier mod : MODIFIERS)
+    {
+      KeyModifier.clear_memo();
+      KeyModifier.memo_hits = 0;
+      KeyModifier.memo_misses = 0;
+      // Warm up both paths
+      bench(ks, mod, rounds, false);
+      bench(ks, mod, rounds, true);
+      long uncached = bench(ks, mod, rounds, false);
+      long cached = bench(ks, mod, rounds, true);
+      int calls = rounds * ks.length;
+      int hits = KeyModifier.memo_hits;
+      int misses = KeyModifier.memo_misses;
+      out.append(String.format(
+            "  %-15s uncached %6.1f  cached %6.1f  hits %d  misses %d\n",
+            mod.name(), uncached / (double)calls, cached / (double)calls,
+            hits, misses));
+    }
+    System.out.print(out);
+  }
+
+  static int _bench_sink = 0;
+
+  static long bench(KeyValue[] ks, KeyValue.Modifier mod, int rounds,
+      boolean cached)
+  {
+    int sink = 0;
+    long start = System.nanoTime();
+    for (int r = 0; r < rounds; r++)
+      for (KeyValue k : ks)
+      {
+        KeyValue m = cached ? KeyModifier.modify(k, mod)
+          : KeyModifier.modify_uncached(k, mod);
+        if (m != null)
+          sink += m.getKind().ordinal();
+      }
+    long t = System.nanoTime() - start;
+    _bench_sink += sink;
+    return t;
+  }
+}
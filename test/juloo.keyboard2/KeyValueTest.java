@@ -22,6 +22,78 @@ public class KeyValueTest
         KeyValue.keyeventKey("tab", KeyEvent.KEYCODE_TAB, KeyValue.FLAG_SMALLER_FONT));
   }
 
+  @Test
+  public void interned()
+  {
+    KeyValue tab = KeyValue.getKeyByName("tab");
+    assertSame(tab, KeyValue.getKeyByName("tab"));
+    assertSame(tab, KeyValue.intern(KeyValue.getSpecialKeyByName("tab")));
+    assertSame(tab, KeyValue.byId(tab.id()));
+    KeyValue macro = KeyValue.getKeyByName("m:a,b");
+    assertSame(macro, KeyValue.intern(KeyValue.makeMacro("m",
+            new KeyValue[]{ KeyValue.makeCharKey('a'), KeyValue.makeCharKey('b') },
+            0)));
+    assertNotEquals(tab.id(), macro.id());
+    assertNotEquals(tab.id(), KeyValue.getKeyByName("shift").id());
+    assertEquals(-1, KeyValue.makeStringKey("not interned").id());
+  }
+
+  @Test
+  public void equality()
+  {
+    KeyValue a = KeyValue.makeStringKey(new String("payload"));
+    KeyValue b = KeyValue.makeStringKey(new String("payload"));
+    assertNotSame(a, b);
+    assertEquals(a, b);
+    assertEquals(a.hashCode(), b.hashCode());
+    assertEquals(0, a.compareTo(b));
+    KeyValue c = KeyValue.makeStringKey("other payload");
+    assertNotEquals(a, c);
+    // Same payload, different flags
+    KeyValue d = a.withFlags(a.getFlags() | KeyValue.FLAG_GREYED);
+    assertNotEquals(a, d);
+    assertEquals(a, d.withFlags(a.getFlags()));
+    // Macros are compared by content.
+    KeyValue m1 = KeyValue.makeMacro("m", new KeyValue[]{ a, c }, 0);
+    KeyValue m2 = KeyValue.makeMacro("m", new KeyValue[]{ b, c }, 0);
+    assertEquals(m1, m2);
+    // Interned and not interned keys.
+    KeyValue i = KeyValue.intern(KeyValue.makeStringKey("interned payload"));
+    KeyValue j = KeyValue.makeStringKey(new String("interned payload"));
+    assertEquals(i, j);
+    assertEquals(j, i);
+    assertSame(i, KeyValue.intern(j));
+    assertNotEquals(i, KeyValue.intern(c));
+    assertEquals(0, i.compareTo(j));
+  }
+
+  @Test
+  public void payload_interned()
+  {
+    KeyValue a = KeyValue.intern(KeyValue.makeStringKey(new String("shared")));
+    KeyValue b = KeyValue.intern(
+        KeyValue.makeStringKey(new String("shared"), KeyValue.FLAG_GREYED));
+    assertNotEquals(a, b);
+    assertSame(a.getString(), b.getString());
+    assertSame(a.getString(), KeyValue.getKeyByName("shared").getString());
+    assertSame(a.getString(), b.withFlags(a.getFlags()).getString());
+    assertSame(a, KeyValue.intern(b.withFlags(a.getFlags())));
+  }
+
+  @Test
+  public void handle()
+  {
+    KeyValue a = KeyValue.makeStringKey(new String("handle"));
+    KeyValue b = KeyValue.makeStringKey(new String("handle"));
+    assertEquals(a.handle(), b.handle());
+    assertEquals(a.handle(), KeyValue.intern(a).handle());
+    assertNotEquals(a.handle(),
+        a.withFlags(a.getFlags() | KeyValue.FLAG_GREYED).handle());
+    assertNotEquals(a.handle(), KeyValue.makeStringKey("other").handle());
+    assertNotEquals(KeyValue.getKeyByName("a").handle(),
+        KeyValue.getKeyByName("b").handle());
+  }
+
   @Test
   public void numpad_script()
   {
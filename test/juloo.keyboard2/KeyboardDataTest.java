@@ -0,0 +1,79 @@
+package juloo.keyboard2;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class KeyboardDataTest
+{
+  public KeyboardDataTest() {}
+
+  static final String LAYOUT =
+    "<keyboard name=\"test\"><row><key c=\"a\"/><key c=\"b\"/></row></keyboard>";
+
+  @Test
+  public void load_string_cached()
+  {
+    KeyboardData a = KeyboardData.load_string(LAYOUT);
+    assertNotNull(a);
+    assertSame(a, KeyboardData.load_string(new String(LAYOUT)));
+    // Only the modified layout is parsed again.
+    String modified = LAYOUT.replace("\"b\"", "\"c\"");
+    KeyboardData b = KeyboardData.load_string(modified);
+    assertNotSame(a, b);
+    assertTrue(b.getKeys().containsKey(KeyValue.getKeyByName("c")));
+    assertSame(a, KeyboardData.load_string(LAYOUT));
+    assertNull(KeyboardData.load_string("<keyboard>"));
+  }
+
+  /** Errors are not cached. */
+  @Test
+  public void load_string_exn_error()
+  {
+    for (int i = 0; i < 2; i++)
+    {
+      try
+      {
+        KeyboardData.load_string_exn("<keyboard>");
+        fail("Expected an exception");
+      }
+      catch (Exception e) {}
+    }
+  }
+
+  @Test
+  public void modifications_share_base() throws Exception
+  {
+    KeyboardData base = CompiledLayouts.load_keyboard("latn_qwerty_us");
+    Set<KeyValue> before = keys_of(base);
+    KeyValue added = KeyValue.getKeyByName("ж");
+    Map<KeyValue, KeyboardData.PreferredPos> extra =
+      new HashMap<KeyValue, KeyboardData.PreferredPos>();
+    extra.put(added, KeyboardData.PreferredPos.ANYWHERE);
+    KeyboardData kw = base.addExtraKeys(extra.entrySet().iterator());
+    assertFalse(before.contains(added));
+    assertTrue(keys_of(kw).contains(added));
+    assertEquals(before, keys_of(base));
+    // Only the row that received the key is copied.
+    int shared = 0;
+    for (int r = 0; r < base.rows.size(); r++)
+      if (kw.rows.get(r) == base.rows.get(r))
+        shared++;
+    assertEquals(base.rows.size() - 1, shared);
+    // A mapping that changes nothing returns the same layout.
+    assertSame(base, base.mapKeys(new KeyboardData.MapKeyValues() {
+      public KeyValue apply(KeyValue key, boolean localized) { return key; }
+    }));
+  }
+
+  static Set<KeyValue> keys_of(KeyboardData kw)
+  {
+    Map<KeyValue, KeyboardData.KeyPos> dst =
+      new HashMap<KeyValue, KeyboardData.KeyPos>();
+    for (int r = 0; r < kw.rows.size(); r++)
+      kw.rows.get(r).getKeys(dst, r);
+    return dst.keySet();
+  }
+}
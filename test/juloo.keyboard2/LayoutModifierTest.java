@@ -0,0 +1,104 @@
+package juloo.keyboard2;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LayoutModifierTest
+{
+  public LayoutModifierTest() {}
+
+  KeyboardData _qwerty;
+  Config _conf;
+
+  void init() throws Exception
+  {
+    _qwerty = CompiledLayouts.load_keyboard("latn_qwerty_us");
+    _conf = new Config(new PointersTest.Handler());
+    _conf.layouts = Arrays.asList(_qwerty, null);
+    _conf.extra_keys_param = extra_keys(null, null, null);
+    _conf.extra_keys_custom = extra_keys(null, null, null);
+    _conf.editor_config.actionLabel = "Go";
+    LayoutModifier.globalConfig = _conf;
+    LayoutModifier.bottom_row = CompiledLayouts.load_row("bottom_row");
+    LayoutModifier.number_row_no_symbols =
+      CompiledLayouts.load_row("number_row_no_symbols");
+    LayoutModifier.number_row_symbols = CompiledLayouts.load_row("number_row");
+    LayoutModifier.num_pad = CompiledLayouts.load_keyboard("numpad");
+    LayoutModifier.clear_cache();
+  }
+
+  @Test
+  public void cached() throws Exception
+  {
+    init();
+    KeyboardData a = LayoutModifier.modify_layout(_qwerty);
+    assertSame(a, LayoutModifier.modify_layout(_qwerty));
+    // Config refreshed with the same values, as on every app switch.
+    _conf.extra_keys_param = extra_keys(_conf.extra_keys_param, null, null);
+    _conf.editor_config = new EditorConfig();
+    _conf.editor_config.actionLabel = new String("Go");
+    assertSame(a, LayoutModifier.modify_layout(_qwerty));
+    // Going back to a previous editor reuses the layout.
+    _conf.editor_config.swapEnterActionKey = true;
+    KeyboardData b = LayoutModifier.modify_layout(_qwerty);
+    assertNotSame(a, b);
+    _conf.editor_config.swapEnterActionKey = false;
+    assertSame(a, LayoutModifier.modify_layout(_qwerty));
+  }
+
+  @Test
+  public void fingerprint() throws Exception
+  {
+    init();
+    KeyboardData a = LayoutModifier.modify_layout(_qwerty);
+    _conf.add_number_row = true;
+    KeyboardData b = LayoutModifier.modify_layout(_qwerty);
+    assertNotSame(a, b);
+    assertEquals(a.rows.size() + 1, b.rows.size());
+    _conf.add_number_row = false;
+    KeyValue euro = KeyValue.getKeyByName("€");
+    _conf.extra_keys_custom = extra_keys(_conf.extra_keys_custom, euro,
+        KeyboardData.PreferredPos.DEFAULT);
+    KeyboardData c = LayoutModifier.modify_layout(_qwerty);
+    assertNotSame(a, c);
+    assertTrue(c.getKeys().containsKey(euro));
+    // Same key with a different position.
+    KeyboardData.PreferredPos next_to_a =
+      new KeyboardData.PreferredPos(KeyValue.getKeyByName("a"));
+    _conf.extra_keys_custom = extra_keys(_conf.extra_keys_custom, euro,
+        next_to_a);
+    KeyboardData d = LayoutModifier.modify_layout(_qwerty);
+    assertNotSame(c, d);
+    _conf.extra_keys_custom = extra_keys(_conf.extra_keys_custom, euro,
+        next_to_a);
+    assertSame(d, LayoutModifier.modify_layout(_qwerty));
+    _conf.layouts = Arrays.asList(_qwerty);
+    assertNotSame(c, LayoutModifier.modify_layout(_qwerty));
+  }
+
+  /** A refreshed map containing only [kv], or no keys if [null]. */
+  static Map<KeyValue, KeyboardData.PreferredPos> extra_keys(
+      Map<KeyValue, KeyboardData.PreferredPos> prev, KeyValue kv,
+      KeyboardData.PreferredPos pos)
+  {
+    Map<KeyValue, KeyboardData.PreferredPos> m =
+      new HashMap<KeyValue, KeyboardData.PreferredPos>();
+    if (kv != null)
+      m.put(kv, new KeyboardData.PreferredPos(pos));
+    return Config.keep_if_equal(prev, m);
+  }
+
+  @Test
+  public void clear_cache() throws Exception
+  {
+    init();
+    KeyboardData a = LayoutModifier.modify_layout(_qwerty);
+    LayoutModifier.clear_cache();
+    KeyboardData b = LayoutModifier.modify_layout(_qwerty);
+    assertNotSame(a, b);
+    assertEquals(a.getKeys().keySet(), b.getKeys().keySet());
+  }
+}
@@ -0,0 +1,248 @@
+package juloo.keyboard2;
+
+import java.lang.management.ManagementFactory;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PointersTest
+{
+  public PointersTest() {}
+
+  @Test
+  public void no_allocations()
+  {
+    com.sun.management.ThreadMXBean bean =
+      (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    if (!bean.isThreadAllocatedMemorySupported())
+      return;
+    Handler h = new Handler();
+    Pointers ptrs = new Pointers(h, config(h), new FakeClock());
+    h.ptrs = ptrs;
+    KeyboardData.Key shift = key("shift");
+    KeyboardData.Key key = key("a", "1", "2", "3", "4", "5", "6", "7", "8");
+    // Fill the pools and the caches
+    for (int i = 0; i < 10; i++)
+      press_sequence(ptrs, shift, key);
+    // The JIT compiler might occasionally allocate on the test thread, keep
+    // the smallest measurement of several rounds.
+    long tid = Thread.currentThread().getId();
+    long allocated = Long.MAX_VALUE;
+    for (int round = 0; round < 10 && allocated > 0; round++)
+    {
+      h.n_up = 0;
+      long before = bean.getThreadAllocatedBytes(tid);
+      for (int i = 0; i < 100; i++)
+        press_sequence(ptrs, shift, key);
+      allocated = Math.min(allocated, bean.getThreadAllocatedBytes(tid) - before);
+      assertEquals(200, h.n_up);
+    }
+    assertEquals(0, allocated);
+  }
+
+  @Test
+  public void long_press_and_key_repeat()
+  {
+    Handler h = new Handler();
+    FakeClock clock = new FakeClock();
+    Pointers ptrs = new Pointers(h, config(h), clock);
+    h.ptrs = ptrs;
+    KeyboardData.Key shift = key("shift");
+    KeyboardData.Key key = key("a");
+    // Long press locks the modifier, it remains after typing a key.
+    ptrs.onTouchDown(10.f, 100.f, 0, shift);
+    clock.advance(600);
+    ptrs.onTouchUp(0);
+    ptrs.onTouchDown(50.f, 100.f, 1, key);
+    ptrs.onTouchUp(1);
+    assertEquals(1, h.mods.size());
+    ptrs.onTouchDown(10.f, 100.f, 0, shift);
+    ptrs.onTouchUp(0);
+    assertEquals(0, h.mods.size());
+    // Key repeat until the key is released.
+    ptrs.onTouchDown(50.f, 100.f, 1, key);
+    clock.advance(599);
+    assertEquals(0, h.n_hold);
+    clock.advance(1);
+    assertEquals(1, h.n_hold);
+    clock.advance(100);
+    assertEquals(5, h.n_hold);
+    ptrs.onTouchUp(1);
+    clock.advance(1000);
+    assertEquals(5, h.n_hold);
+    assertEquals(-1, clock.posted_at);
+    // Two keys repeating at the same time.
+    ptrs.onTouchDown(50.f, 100.f, 2, key);
+    clock.advance(300);
+    ptrs.onTouchDown(50.f, 100.f, 3, key);
+    clock.advance(300);
+    assertEquals(6, h.n_hold);
+    clock.advance(300);
+    assertEquals(6 + 12 + 1, h.n_hold);
+    ptrs.onTouchCancel();
+    assertEquals(-1, clock.posted_at);
+  }
+
+  @Test
+  public void interned_modifiers()
+  {
+    KeyValue shift = KeyValue.getKeyByName("shift");
+    KeyValue fn = KeyValue.getKeyByName("fn");
+    Pointers.Modifiers m1 =
+      Pointers.Modifiers.ofArray(new KeyValue[]{ shift, fn }, 2);
+    Pointers.Modifiers m2 =
+      Pointers.Modifiers.ofArray(new KeyValue[]{ fn, shift, null }, 2);
+    assertSame(m1, m2);
+    assertSame(m1, Pointers.Modifiers.EMPTY.with_extra_mod(fn).with_extra_mod(shift));
+    assertSame(Pointers.Modifiers.EMPTY, Pointers.Modifiers.ofArray(new KeyValue[0], 0));
+  }
+
+  @Test
+  public void swipe_direction()
+  {
+    // Every integer vectors in a range larger than the keyboard, then the
+    // same range with a finer step.
+    for (int step = 1; step <= 8; step *= 8)
+      for (int x = -600; x <= 600; x++)
+        for (int y = -600; y <= 600; y++)
+          assert_swipe_direction(x / (float)step, y / (float)step);
+    // Vectors close to the boundaries between sectors.
+    for (int i = 0; i < 16; i++)
+    {
+      double a = i * Math.PI / 8;
+      for (int r = 1; r < 5000; r++)
+      {
+        float x = (float)(Math.cos(a) * r);
+        float y = (float)(Math.sin(a) * r);
+        assert_swipe_direction(x, y);
+        assert_swipe_direction(Math.nextUp(x), y);
+        assert_swipe_direction(Math.nextDown(x), y);
+        assert_swipe_direction(x, Math.nextUp(y));
+        assert_swipe_direction(x, Math.nextDown(y));
+      }
+    }
+  }
+
+  void assert_swipe_direction(float dx, float dy)
+  {
+    int expected = Pointers.swipe_direction_atan2(dx, dy);
+    int d = Pointers.swipe_direction(dx, dy);
+    if (d != expected)
+      fail("dx=" + dx + " dy=" + dy + " expected " + expected + " got " + d);
+  }
+
+  /** Type a key with shift latched then swipe on it. */
+  void press_sequence(Pointers ptrs, KeyboardData.Key shift, KeyboardData.Key key)
+  {
+    ptrs.onTouchDown(10.f, 100.f, 0, shift);
+    ptrs.onTouchUp(0);
+    ptrs.onTouchDown(50.f, 100.f, 1, key);
+    ptrs.onTouchMove(52.f, 101.f, 1, 0);
+    ptrs.onTouchUp(1);
+    ptrs.onTouchDown(50.f, 100.f, 2, key);
+    ptrs.onTouchMove(60.f, 100.f, 2, 0);
+    ptrs.onTouchMove(80.f, 101.f, 2, 10);
+    ptrs.onTouchMove(90.f, 106.f, 2, 20);
+    ptrs.onTouchUp(2);
+  }
+
+  static KeyboardData.Key key(String... names)
+  {
+    KeyValue[] kvs = new KeyValue[9];
+    for (int i = 0; i < names.length; i++)
+      kvs[i] = KeyValue.getKeyByName(names[i]);
+    return new KeyboardData.Key(kvs, null, 0, 1.f, 0.f, null);
+  }
+
+  static Config config(Handler h)
+  {
+    Config c = new Config(h);
+    c.swipe_dist_px = 15.f;
+    c.slide_step_px = 15.f;
+    c.circle_sensitivity = 2;
+    c.longPressTimeout = 600;
+    c.longPressInterval = 25;
+    c.keyrepeat_enabled = true;
+    return c;
+  }
+
+  static class Handler
+    implements Pointers.IPointerEventHandler, Config.IKeyEventHandler
+  {
+    Pointers ptrs;
+    Pointers.Modifiers mods = Pointers.Modifiers.EMPTY;
+    int n_up = 0;
+    int n_hold = 0;
+
+    /** Modifiers are not applied, [KeyModifier] is not tested here. */
+    public KeyValue modifyKey(KeyValue k, Pointers.Modifiers mods)
+    {
+      return k;
+    }
+
+    public void onPointerDown(KeyValue k, boolean isSwipe)
+    {
+      mods = ptrs.getModifiers();
+    }
+
+    public void onPointerUp(KeyValue k, Pointers.Modifiers mods_)
+    {
+      n_up++;
+      mods = ptrs.getModifiers();
+    }
+
+    public void onPointerFlagsChanged(boolean shouldVibrate)
+    {
+      mods = ptrs.getModifiers();
+    }
+
+    public void onPointerHold(KeyValue k, Pointers.Modifiers mods_)
+    {
+      n_hold++;
+    }
+
+    public void key_down(KeyValue value, boolean is_swipe) {}
+    public void key_up(KeyValue value, Pointers.Modifiers mods) {}
+    public void mods_changed(Pointers.Modifiers mods) {}
+  }
+
+  /** Time only advances when asked to. At most one callback can be posted. */
+  static class FakeClock implements KeyTimers.Clock
+  {
+    long now = 0;
+    Runnable posted = null;
+    long posted_at = -1;
+
+    public long now() { return now; }
+
+    public void post_at(Runnable r, long time)
+    {
+      assertNull(posted);
+      posted = r;
+      posted_at = time;
+    }
+
+    public void cancel(Runnable r)
+    {
+      if (posted == r)
+      {
+        posted = null;
+        posted_at = -1;
+      }
+    }
+
+    /** Run the callbacks that are due in order. */
+    void advance(long ms)
+    {
+      long end = now + ms;
+      while (posted != null && posted_at <= end)
+      {
+        Runnable r = posted;
+        now = Math.max(now, posted_at);
+        posted = null;
+        posted_at = -1;
+        r.run();
+      }
+      now = end;
+    }
+  }
+}